@@ -0,0 +1,117 @@
+package io.branch.search;
+
+import android.app.Instrumentation;
+import android.content.pm.ApplicationInfo;
+import android.os.Bundle;
+import android.os.Debug;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A minimal microbenchmark harness that reports ns/op and allocs/op.
+ *
+ * Each benchmark is first warmed up for {@link #WARMUP_NANOS}, so that the code under test is
+ * JIT compiled, which also tells how many operations fit in a run of {@link #TARGET_RUN_NANOS}.
+ * Then {@link #RUNS} runs are timed, and the median and minimum time per operation are
+ * reported. Allocations are counted in a separate run, since counting slows allocations down.
+ * Only allocations of the benchmark thread are counted: work handed to other threads (like
+ * the app checks of {@link BranchResultProcessor}) is timed, but its allocations are not.
+ *
+ * Results go to logcat and to the instrumentation status, so that they can be collected from
+ * {@code am instrument -r} output. Numbers are only comparable on the same device, with the
+ * screen on and the device idle.
+ */
+final class BranchBenchmark {
+
+    private static final String TAG = "BranchBenchmark";
+    private static final long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long TARGET_RUN_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int RUNS = 20;
+    private static final int STATUS_CODE = 2;
+
+    // Results are written here so that the JIT can't drop the operations.
+    @SuppressWarnings("unused")
+    private static volatile Object sSink;
+    private static boolean sCheckedDebuggable;
+
+    /**
+     * An operation to benchmark.
+     */
+    interface Op {
+        /**
+         * @return the result of the operation, which is kept alive
+         * @throws Exception if the operation fails
+         */
+        Object run() throws Exception;
+    }
+
+    private BranchBenchmark() {}
+
+    /**
+     * Benchmarks the given operation and reports the results.
+     * @param name the benchmark name
+     * @param op the operation
+     * @throws Exception if the operation fails
+     */
+    static void run(@NonNull String name, @NonNull Op op) throws Exception {
+        checkDebuggable();
+        long iterations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sSink = op.run();
+            iterations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < WARMUP_NANOS);
+        long batch = Math.max(1, iterations * TARGET_RUN_NANOS / elapsed);
+
+        long[] nanos = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            long runStart = System.nanoTime();
+            for (long i = 0; i < batch; i++) {
+                sSink = op.run();
+            }
+            nanos[run] = (System.nanoTime() - runStart) / batch;
+        }
+        Arrays.sort(nanos);
+        double allocs = countAllocations(op, batch);
+        sSink = null;
+        report(String.format(Locale.US, "%s: %d ns/op (min %d), %.1f allocs/op",
+                name, nanos[RUNS / 2], nanos[0], allocs));
+    }
+
+    @SuppressWarnings("deprecation")
+    private static double countAllocations(@NonNull Op op, long batch) throws Exception {
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            for (long i = 0; i < batch; i++) {
+                sSink = op.run();
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        return (double) Debug.getThreadAllocCount() / batch;
+    }
+
+    private static void checkDebuggable() {
+        if (sCheckedDebuggable) return;
+        sCheckedDebuggable = true;
+        ApplicationInfo info = InstrumentationRegistry.getTargetContext().getApplicationInfo();
+        if ((info.flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            report("WARNING: running debuggable, results are not representative");
+        }
+    }
+
+    private static void report(@NonNull String message) {
+        Log.i(TAG, message);
+        Bundle status = new Bundle();
+        status.putString(Instrumentation.REPORT_KEY_STREAMRESULT, TAG + ": " + message + "\n");
+        InstrumentationRegistry.getInstrumentation().sendStatus(STATUS_CODE, status);
+    }
+}
@@ -0,0 +1,70 @@
+package io.branch.search;
+
+import android.util.Base64;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Benchmarks encryption round trips for request-sized and response-sized payloads.
+ * Skipped in builds without an encryption key.
+ */
+@RunWith(Parameterized.class)
+public class BranchcryptionBenchmark {
+
+    private static final String IV = "1234567890123456";
+
+    @Parameterized.Parameters(name = "{0} bytes")
+    public static Collection<Object[]> sizes() {
+        return Arrays.asList(new Object[][] {{1024}, {16 * 1024}, {128 * 1024}});
+    }
+
+    private final int size;
+    private byte[] plain;
+    private byte[] iv;
+
+    public BranchcryptionBenchmark(int size) {
+        this.size = size;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        plain = new byte[size];
+        Arrays.fill(plain, (byte) 'a');
+        iv = IV.getBytes("UTF-8");
+        try {
+            Branchcryption.encrypt(plain, IV);
+        } catch (GeneralSecurityException e) {
+            Assume.assumeNoException("Encryption is not available in this build", e);
+        }
+    }
+
+    @Test
+    public void encrypt() throws Exception {
+        BranchBenchmark.run("Branchcryption.encrypt " + size, new BranchBenchmark.Op() {
+            @Override
+            public Object run() throws Exception {
+                return Branchcryption.encrypt(plain, IV);
+            }
+        });
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        BranchBenchmark.run("Branchcryption round trip " + size, new BranchBenchmark.Op() {
+            @Override
+            public Object run() throws Exception {
+                byte[] encrypted = Branchcryption.encrypt(plain, IV);
+                String encoded = Base64.encodeToString(encrypted, Base64.DEFAULT);
+                return Branchcryption.decrypt(encoded, iv);
+            }
+        });
+    }
+}
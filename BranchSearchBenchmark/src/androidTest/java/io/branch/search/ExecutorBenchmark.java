@@ -0,0 +1,57 @@
+package io.branch.search;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Benchmarks the overhead of handing work to the SDK executors: each operation submits
+ * an empty task and waits for it to run, so it measures the queueing and thread handoff.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ExecutorBenchmark {
+
+    @Test
+    public void sharedExecutorDispatch() throws Exception {
+        final BranchSharedExecutor executor = BranchSharedExecutor.getInstance();
+        final Semaphore done = new Semaphore(0);
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                done.release();
+            }
+        };
+        BranchBenchmark.run("BranchSharedExecutor dispatch", new BranchBenchmark.Op() {
+            @Override
+            public Object run() throws Exception {
+                executor.execute(BranchSharedExecutor.Lane.SEARCH, task);
+                done.acquire();
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void branchExecutorDispatch() throws Exception {
+        final Executor executor = new BranchExecutor(1);
+        final Semaphore done = new Semaphore(0);
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                done.release();
+            }
+        };
+        BranchBenchmark.run("BranchExecutor dispatch", new BranchBenchmark.Op() {
+            @Override
+            public Object run() throws Exception {
+                executor.execute(task);
+                done.acquire();
+                return null;
+            }
+        });
+    }
+}
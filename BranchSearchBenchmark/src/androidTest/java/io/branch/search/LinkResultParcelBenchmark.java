@@ -0,0 +1,59 @@
+package io.branch.search;
+
+import android.content.Context;
+import android.os.Parcel;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.JsonReader;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Benchmarks {@link BranchLinkResult} Parcel round trips, which happen whenever a link
+ * is passed to another component, like the DeepView fragment.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LinkResultParcelBenchmark {
+
+    private BranchLinkResult link;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        JsonReader reader = new JsonReader(new InputStreamReader(
+                new ByteArrayInputStream(SearchResponses.create(SearchResponses.LINKS_PER_APP)),
+                "UTF-8"));
+        BranchResultProcessor processor = new BranchResultProcessor(context, new BranchConfiguration());
+        BranchSearchResult result = BranchSearchResult.createFromJson(
+                BranchSearchRequest.Create("pizza"), reader, processor, null);
+        assertFalse(result.getResults().isEmpty());
+        List<BranchLinkResult> links = result.getResults().get(0).getDeepLinks();
+        assertFalse(links.isEmpty());
+        link = links.get(0);
+    }
+
+    @Test
+    public void parcelRoundTrip() throws Exception {
+        BranchBenchmark.run("BranchLinkResult parcel round trip", new BranchBenchmark.Op() {
+            @Override
+            public Object run() {
+                Parcel parcel = Parcel.obtain();
+                try {
+                    link.writeToParcel(parcel, 0);
+                    parcel.setDataPosition(0);
+                    return BranchLinkResult.CREATOR.createFromParcel(parcel);
+                } finally {
+                    parcel.recycle();
+                }
+            }
+        });
+    }
+}
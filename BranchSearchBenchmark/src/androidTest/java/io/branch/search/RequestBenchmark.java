@@ -0,0 +1,64 @@
+package io.branch.search;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Benchmarks the creation of request payloads and bodies.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RequestBenchmark {
+
+    private BranchConfiguration configuration;
+    private BranchDeviceInfo info;
+    private BranchSearchRequest request;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        configuration = new BranchConfiguration().setBranchKey("key_live_benchmark");
+        configuration.sync(context);
+        info = new BranchDeviceInfo();
+        info.sync(context);
+        request = BranchSearchRequest.Create("pizza near me")
+                .setMaxAppResults(10)
+                .setMaxContentPerAppResults(5)
+                .setExtra("session", "benchmark");
+    }
+
+    @Test
+    public void toJson() throws Exception {
+        BranchBenchmark.run("BranchDiscoveryRequest.toJson", new BranchBenchmark.Op() {
+            @Override
+            public Object run() {
+                return request.toJson();
+            }
+        });
+    }
+
+    @Test
+    public void createPayload() throws Exception {
+        BranchBenchmark.run("BranchSearchInterface.createPayload", new BranchBenchmark.Op() {
+            @Override
+            public Object run() {
+                return BranchSearchInterface.createPayload(request, configuration, info);
+            }
+        });
+    }
+
+    @Test
+    public void createRequestBody() throws Exception {
+        final BranchPayload payload = BranchSearchInterface.createPayload(request, configuration, info);
+        BranchBenchmark.run("BranchRequestBody.create", new BranchBenchmark.Op() {
+            @Override
+            public Object run() throws Exception {
+                return BranchRequestBody.create(payload);
+            }
+        });
+    }
+}
@@ -0,0 +1,76 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+
+/**
+ * Builds search responses of a given size, with the same fields and value sizes as
+ * the responses of the search endpoint. Links are grouped {@link #LINKS_PER_APP} per app.
+ */
+final class SearchResponses {
+
+    static final int LINKS_PER_APP = 5;
+
+    private SearchResponses() {}
+
+    /**
+     * @param links the number of links
+     * @return the UTF-8 response body
+     */
+    @NonNull
+    static byte[] create(int links) throws JSONException, UnsupportedEncodingException {
+        JSONArray apps = new JSONArray();
+        int appCount = (links + LINKS_PER_APP - 1) / LINKS_PER_APP;
+        for (int app = 0; app < appCount; app++) {
+            JSONArray deepLinks = new JSONArray();
+            for (int link = app * LINKS_PER_APP; link < Math.min(links, (app + 1) * LINKS_PER_APP); link++) {
+                deepLinks.put(createLink(app, link));
+            }
+            JSONObject json = new JSONObject();
+            json.put("app_name", "Benchmark App " + app);
+            json.put("app_store_id", "io.branch.benchmark.app" + app);
+            json.put("app_icon_url", "https://lh3.googleusercontent.com/benchmark-icon-" + app + "=s90");
+            json.put("score", 10.0 - app * 0.1);
+            json.put("ranking_hint", "app-" + app);
+            json.put("deep_links", deepLinks);
+            apps.put(json);
+        }
+        JSONObject response = new JSONObject();
+        response.put("request_id", "4f0a5e2c-9a3b-4d1e-8c2f-6b7d8e9f0a1b");
+        response.put("search_query_string", "pizza");
+        response.put("success", true);
+        response.put("results", apps);
+        return response.toString().getBytes("UTF-8");
+    }
+
+    @NonNull
+    private static JSONObject createLink(int app, int link) throws JSONException {
+        JSONObject metadata = new JSONObject();
+        metadata.put("rating", 4.5);
+        metadata.put("address", link + " Market Street, San Francisco, CA");
+
+        JSONObject json = new JSONObject();
+        json.put("entity_id", String.format(Locale.US, "%08x-%04x", app, link));
+        json.put("type", "model3");
+        json.put("score", 5.0 - link * 0.01);
+        json.put("name", "Result " + link + " of app " + app);
+        json.put("description", "A description of result " + link
+                + ", long enough to wrap on two lines in a typical list item.");
+        json.put("image_url", "https://cdn.branch.io/benchmark/images/" + app + "/" + link + ".jpg");
+        json.put("metadata", metadata);
+        json.put("uri_scheme", "benchmark" + app + "://results/" + link);
+        json.put("web_link", "https://benchmark" + app + ".app.link/results/" + link);
+        json.put("routing_mode", "launch_intent");
+        json.put("click_tracking_link", "https://vulcan.branch.io/v1/click?request_id=4f0a5e2c"
+                + "&entity_id=" + link + "&app=" + app);
+        json.put("ranking_hint", "link-" + link);
+        json.put("icon_category", BranchLinkResult.ICON_CATEGORY_FOOD);
+        return json;
+    }
+}
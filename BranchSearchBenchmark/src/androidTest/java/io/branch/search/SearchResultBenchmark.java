@@ -0,0 +1,72 @@
+package io.branch.search;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.util.JsonReader;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Benchmarks parsing search responses of different sizes, from the network stream
+ * and from a JSON tree. Both include the app checks of {@link BranchResultProcessor}.
+ */
+@RunWith(Parameterized.class)
+public class SearchResultBenchmark {
+
+    @Parameterized.Parameters(name = "{0} links")
+    public static Collection<Object[]> sizes() {
+        return Arrays.asList(new Object[][] {{10}, {50}, {200}});
+    }
+
+    private final int links;
+    private byte[] response;
+    private BranchSearchRequest request;
+    private BranchResultProcessor processor;
+
+    public SearchResultBenchmark(int links) {
+        this.links = links;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        response = SearchResponses.create(links);
+        request = BranchSearchRequest.Create("pizza");
+        processor = new BranchResultProcessor(context, new BranchConfiguration());
+        BranchPackageIndex.getInstance(context);
+    }
+
+    @Test
+    public void createFromStream() throws Exception {
+        BranchBenchmark.run("BranchSearchResult.createFromJson stream " + links,
+                new BranchBenchmark.Op() {
+            @Override
+            public Object run() throws Exception {
+                JsonReader reader = new JsonReader(new InputStreamReader(
+                        new ByteArrayInputStream(response), "UTF-8"));
+                return BranchSearchResult.createFromJson(request, reader, processor, null);
+            }
+        });
+    }
+
+    @Test
+    public void createFromTree() throws Exception {
+        BranchBenchmark.run("BranchSearchResult.createFromJson tree " + links,
+                new BranchBenchmark.Op() {
+            @Override
+            public Object run() throws Exception {
+                JSONObject json = new JSONObject(new String(response, "UTF-8"));
+                return BranchSearchResult.createFromJson(request, json, processor);
+            }
+        });
+    }
+}
@@ -7,13 +7,18 @@ import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Application Result.
@@ -174,50 +179,134 @@ public class BranchAppResult implements Parcelable {
         return false;
     }
 
-    @SuppressWarnings("unused")
-    @Nullable
-    static BranchAppResult createFromJson(@NonNull JSONObject json) {
-
-        // Parse fields and check if installed
-        String name = Util.optString(json, KEY_APP_NAME);
-        String packageName = Util.optString(json, KEY_APP_STORE_ID);
-        String iconUrl = Util.optString(json, KEY_APP_ICON_URL);
-        float score = (float) json.optDouble(KEY_APP_SCORE, 0.0);
-        String rankingHint = Util.optString(json, KEY_RANKING_HINT);
-        String deepviewExtraText = Util.optString(json, KEY_DEEPVIEW_EXTRA_TEXT);
-        Context appContext = BranchSearch.getInstance().getApplicationContext();
-        boolean isInstalled = Util.isAppInstalled(appContext, packageName);
-
-        // Parse deep links
+    /**
+     * Parses an app from the given JSON object. The app is not usable until
+     * {@link BranchResultProcessor} has checked it.
+     * @param json json object
+     * @return a raw app
+     */
+    @NonNull
+    static Raw createFromJson(@NonNull JSONObject json) {
+        Raw raw = new Raw();
+        raw.name = Util.optString(json, KEY_APP_NAME);
+        raw.packageName = Util.optString(json, KEY_APP_STORE_ID);
+        raw.iconUrl = Util.optString(json, KEY_APP_ICON_URL);
+        raw.score = (float) json.optDouble(KEY_APP_SCORE, 0.0);
+        raw.rankingHint = Util.optString(json, KEY_RANKING_HINT);
+        raw.deepviewExtraText = Util.optString(json, KEY_DEEPVIEW_EXTRA_TEXT);
+        raw.notInstalledMaxResults = json.optInt(KEY_NOT_INSTALLED_MAX_RESULTS, Integer.MAX_VALUE);
+
         JSONArray linksJson = json.optJSONArray(KEY_APP_DEEP_LINKS);
-        List<BranchLinkResult> links = new ArrayList<>();
         if (linksJson != null) {
             for (int j = 0; j < linksJson.length(); j++) {
-                BranchLinkResult link = BranchLinkResult.createFromJson(
-                        linksJson.optJSONObject(j),
-                        name,
-                        packageName,
-                        iconUrl,
-                        deepviewExtraText,
-                        isInstalled);
-                if (link != null) {
-                    links.add(link);
+                JSONObject linkJson = linksJson.optJSONObject(j);
+                if (linkJson != null) {
+                    raw.links.add(BranchLinkResult.createFromJson(linkJson));
                 }
             }
         }
+        return raw;
+    }
+
+    /**
+     * Parses an app from the given reader, which should be positioned before the app
+     * object. This has the same output as {@link #createFromJson(JSONObject)}, but links
+     * are parsed as they are read, without building the JSON tree first.
+     * @param reader a reader
+     * @return a raw app
+     * @throws IOException if reading fails
+     */
+    @NonNull
+    static Raw createFromJson(@NonNull JsonReader reader) throws IOException {
+        Raw raw = new Raw();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case KEY_APP_NAME: raw.name = Util.nextString(reader, ""); break;
+                case KEY_APP_STORE_ID: raw.packageName = Util.nextString(reader, ""); break;
+                case KEY_APP_ICON_URL: raw.iconUrl = Util.nextString(reader, ""); break;
+                case KEY_APP_SCORE: raw.score = (float) Util.nextDouble(reader, 0.0); break;
+                case KEY_RANKING_HINT: raw.rankingHint = Util.nextString(reader, ""); break;
+                case KEY_DEEPVIEW_EXTRA_TEXT: raw.deepviewExtraText = Util.nextString(reader, ""); break;
+                case KEY_NOT_INSTALLED_MAX_RESULTS:
+                    raw.notInstalledMaxResults = (int) Util.nextDouble(reader, Integer.MAX_VALUE);
+                    break;
+                case KEY_APP_DEEP_LINKS:
+                    if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                        reader.skipValue();
+                        break;
+                    }
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                            raw.links.add(BranchLinkResult.createFromJson(reader));
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endArray();
+                    break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return raw;
+    }
+
+    /**
+     * An app as parsed from JSON, before checking whether it is installed and which
+     * of its links should be displayed.
+     */
+    static class Raw {
+        String name = "";
+        String packageName = "";
+        String iconUrl = "";
+        float score = 0F;
+        String rankingHint = "";
+        String deepviewExtraText = "";
+        int notInstalledMaxResults = Integer.MAX_VALUE;
+        final List<BranchLinkResult> links = new ArrayList<>();
 
-        // Apply the max results constraint
-        // If nothing remains, this app should disappear
-        if (!isInstalled) {
-            int maxResults = json.optInt(KEY_NOT_INSTALLED_MAX_RESULTS, Integer.MAX_VALUE);
-            int max = Math.min(maxResults, links.size());
-            links = links.subList(0, max);
+        /**
+         * @return the shortcut ids of all links, that should be validated
+         */
+        @NonNull
+        Set<String> getShortcutIds() {
+            Set<String> ids = new HashSet<>();
+            for (BranchLinkResult link : links) {
+                String id = link.getAndroidShortcutId();
+                if (id != null) ids.add(id);
+            }
+            return ids;
         }
-        if (links.isEmpty()) {
-            return null;
-        } else {
-            return new BranchAppResult(packageName, name, iconUrl, rankingHint, score, links);
+
+        /**
+         * Binds and filters the links, then creates the app.
+         * @param isInstalled whether the app is installed
+         * @param validShortcutIds valid shortcut ids among {@link #getShortcutIds()}
+         * @return an app, or null if it has no links to display
+         */
+        @Nullable
+        BranchAppResult create(boolean isInstalled, @NonNull Set<String> validShortcutIds) {
+            List<BranchLinkResult> filtered = new ArrayList<>(links.size());
+            for (BranchLinkResult link : links) {
+                if (link.bindToApp(name, packageName, iconUrl, deepviewExtraText,
+                        isInstalled, validShortcutIds)) {
+                    filtered.add(link);
+                }
+            }
+
+            // Apply the max results constraint
+            // If nothing remains, this app should disappear
+            if (!isInstalled) {
+                int max = Math.min(notInstalledMaxResults, filtered.size());
+                filtered = filtered.subList(0, max);
+            }
+            if (filtered.isEmpty()) {
+                return null;
+            } else {
+                return new BranchAppResult(packageName, name, iconUrl, rankingHint, score, filtered);
+            }
         }
     }
 }
-
@@ -0,0 +1,211 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A local autosuggest index that can answer prefix queries synchronously.
+ *
+ * Queries are stored in a prefix trie, keyed on their normalized form
+ * (see {@link BranchResultCache#normalizeQuery(String)}). Each node keeps its children
+ * in two parallel sorted arrays, which is much more compact than a map of boxed characters
+ * and still lets us find a child with a binary search.
+ *
+ * The index is fed with server autosuggestions, query hints and queries that returned
+ * search results, each with a different weight. It only lives in memory: at startup, it is
+ * seeded with the autosuggestions and query hints of {@link BranchDiskCache}. It holds at most {@link #MAX_ENTRIES}
+ * entries: when full, the entry with the lowest weight is removed. This keeps the trie small
+ * enough so that a lookup, which visits the whole subtree of the prefix node, takes well
+ * under a millisecond.
+ */
+class BranchAutoSuggestIndex {
+
+    private static final int MAX_ENTRIES = 1000;
+    private static final int DEFAULT_MAX_RESULTS = 5;
+
+    static final float WEIGHT_SUGGESTION = 1F;
+    static final float WEIGHT_HINT = 1F;
+    static final float WEIGHT_SEARCH = 3F;
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_NODES = new Node[0];
+
+    private static class Node {
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_NODES;
+        private Node parent;
+        @Nullable private Entry entry;
+
+        @Nullable
+        private Node get(char key) {
+            int index = Arrays.binarySearch(keys, key);
+            return index >= 0 ? children[index] : null;
+        }
+
+        @NonNull
+        private Node getOrCreate(char key) {
+            int index = Arrays.binarySearch(keys, key);
+            if (index >= 0) return children[index];
+            index = -index - 1;
+            Node child = new Node();
+            child.parent = this;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newKeys[index] = key;
+            newChildren[index] = child;
+            System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+
+        private void remove(@NonNull Node child) {
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] == child) {
+                    char[] newKeys = new char[keys.length - 1];
+                    Node[] newChildren = new Node[children.length - 1];
+                    System.arraycopy(keys, 0, newKeys, 0, i);
+                    System.arraycopy(children, 0, newChildren, 0, i);
+                    System.arraycopy(keys, i + 1, newKeys, i, keys.length - i - 1);
+                    System.arraycopy(children, i + 1, newChildren, i, children.length - i - 1);
+                    keys = newKeys.length == 0 ? NO_KEYS : newKeys;
+                    children = newChildren.length == 0 ? NO_NODES : newChildren;
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        private final String query;
+        private final Node node;
+        private float weight;
+
+        private Entry(@NonNull String query, @NonNull Node node) {
+            this.query = query;
+            this.node = node;
+        }
+    }
+
+    private static final Comparator<Entry> BY_WEIGHT = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry first, Entry second) {
+            return Float.compare(second.weight, first.weight);
+        }
+    };
+
+    private final Node root = new Node();
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Adds the given query to the index, or increases its weight if already present.
+     * @param query the query, as it should be displayed
+     * @param weight the weight to add
+     */
+    synchronized void add(@NonNull String query, float weight) {
+        String key = BranchResultCache.normalizeQuery(query);
+        if (key.isEmpty()) return;
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            if (entries.size() >= MAX_ENTRIES) {
+                removeLightest();
+            }
+            Node node = root;
+            for (int i = 0; i < key.length(); i++) {
+                node = node.getOrCreate(key.charAt(i));
+            }
+            entry = new Entry(query.trim(), node);
+            node.entry = entry;
+            entries.put(key, entry);
+        }
+        entry.weight += weight;
+    }
+
+    /**
+     * Adds all the given queries. Queries that come first get a higher weight,
+     * since servers return their results in order of relevance.
+     * @param queries the queries
+     * @param weight the weight of the first query
+     */
+    synchronized void addAll(@NonNull List<String> queries, float weight) {
+        for (int i = 0; i < queries.size(); i++) {
+            add(queries.get(i), weight / (i + 1));
+        }
+    }
+
+    /**
+     * Returns the best local suggestions for the given query prefix.
+     * @param prefix the prefix
+     * @param maxResults maximum number of results, or 0 to use the default
+     * @return a list of queries, possibly empty
+     */
+    @NonNull
+    synchronized List<String> query(@NonNull String prefix, int maxResults) {
+        if (maxResults <= 0) maxResults = DEFAULT_MAX_RESULTS;
+        String key = BranchResultCache.normalizeQuery(prefix);
+        if (key.isEmpty()) return Collections.emptyList();
+        Node node = root;
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.get(key.charAt(i));
+        }
+        if (node == null) return Collections.emptyList();
+
+        List<Entry> matches = new ArrayList<>();
+        collect(node, matches);
+        Collections.sort(matches, BY_WEIGHT);
+        int count = Math.min(maxResults, matches.size());
+        List<String> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            results.add(matches.get(i).query);
+        }
+        return results;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    synchronized void clear() {
+        root.keys = NO_KEYS;
+        root.children = NO_NODES;
+        entries.clear();
+    }
+
+    private static void collect(@NonNull Node node, @NonNull List<Entry> into) {
+        if (node.entry != null) into.add(node.entry);
+        for (Node child : node.children) {
+            collect(child, into);
+        }
+    }
+
+    private void removeLightest() {
+        Entry lightest = null;
+        String lightestKey = null;
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (lightest == null || entry.getValue().weight < lightest.weight) {
+                lightest = entry.getValue();
+                lightestKey = entry.getKey();
+            }
+        }
+        if (lightest == null) return;
+        entries.remove(lightestKey);
+
+        // Prune the branch that is not leading to other entries anymore.
+        Node node = lightest.node;
+        node.entry = null;
+        while (node.parent != null && node.entry == null && node.children.length == 0) {
+            node.parent.remove(node);
+            node = node.parent;
+        }
+    }
+}
@@ -46,6 +46,10 @@ public class BranchAutoSuggestRequest extends BranchDiscoveryRequest<BranchAutoS
         return query;
     }
 
+    int getMaxResults() {
+        return maxResults;
+    }
+
     @NonNull
     @Override
     JSONObject toJson() {
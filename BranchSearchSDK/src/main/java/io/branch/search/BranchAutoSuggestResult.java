@@ -9,7 +9,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Represents results of an auto suggest query started from
@@ -43,6 +45,53 @@ public class BranchAutoSuggestResult implements Parcelable {
         return new BranchAutoSuggestResult(suggestions);
     }
 
+    @NonNull
+    static BranchAutoSuggestResult createFromQueries(@NonNull List<String> queries,
+                                                     boolean isLocal) {
+        List<BranchAutoSuggestion> suggestions = new ArrayList<>(queries.size());
+        for (String query : queries) {
+            suggestions.add(new BranchAutoSuggestion(query, isLocal));
+        }
+        return new BranchAutoSuggestResult(suggestions);
+    }
+
+    /**
+     * Returns a new result with the remote suggestions of this result, followed by the
+     * given local suggestions that are not already present.
+     * @param local local suggestions
+     * @param maxResults the maximum number of results, or 0 for no limit
+     * @return a merged result
+     */
+    @NonNull
+    BranchAutoSuggestResult merge(@NonNull List<String> local, int maxResults) {
+        if (local.isEmpty()) return this;
+        List<BranchAutoSuggestion> merged = new ArrayList<>(suggestions);
+        Set<String> seen = new HashSet<>();
+        for (BranchAutoSuggestion suggestion : suggestions) {
+            seen.add(BranchResultCache.normalizeQuery(suggestion.getQuery()));
+        }
+        for (String query : local) {
+            if (maxResults > 0 && merged.size() >= maxResults) break;
+            if (seen.add(BranchResultCache.normalizeQuery(query))) {
+                merged.add(new BranchAutoSuggestion(query, true));
+            }
+        }
+        return new BranchAutoSuggestResult(merged);
+    }
+
+    /**
+     * Returns the queries of the remote suggestions in this result.
+     * @return a list of queries
+     */
+    @NonNull
+    List<String> getQueries() {
+        List<String> queries = new ArrayList<>(suggestions.size());
+        for (BranchAutoSuggestion suggestion : suggestions) {
+            if (!suggestion.isLocal()) queries.add(suggestion.getQuery());
+        }
+        return queries;
+    }
+
     @Override
     public int describeContents() {
         return 0;
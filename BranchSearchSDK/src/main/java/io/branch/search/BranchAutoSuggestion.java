@@ -9,9 +9,15 @@ import android.support.annotation.NonNull;
  */
 public class BranchAutoSuggestion implements Parcelable {
     private final String query;
+    private final boolean isLocal;
 
     BranchAutoSuggestion(@NonNull String query) {
+        this(query, false);
+    }
+
+    BranchAutoSuggestion(@NonNull String query, boolean isLocal) {
         this.query = query;
+        this.isLocal = isLocal;
     }
 
     @NonNull
@@ -19,6 +25,15 @@ public class BranchAutoSuggestion implements Parcelable {
         return query;
     }
 
+    /**
+     * Whether this suggestion was computed locally, from previous autosuggest results,
+     * query hints and searches, rather than returned by the server.
+     * @return true if local, false if remote
+     */
+    public boolean isLocal() {
+        return isLocal;
+    }
+
     @NonNull
     @Override
     public String toString() {
@@ -42,13 +57,14 @@ public class BranchAutoSuggestion implements Parcelable {
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeString(query);
+        dest.writeInt(isLocal ? 1 : 0);
     }
 
     public final static Creator<BranchAutoSuggestion> CREATOR = new Creator<BranchAutoSuggestion>() {
         @Override
         public BranchAutoSuggestion createFromParcel(Parcel source) {
             //noinspection ConstantConditions
-            return new BranchAutoSuggestion(source.readString());
+            return new BranchAutoSuggestion(source.readString(), source.readInt() == 1);
         }
 
         @Override
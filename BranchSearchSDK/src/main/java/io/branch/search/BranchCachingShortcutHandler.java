@@ -0,0 +1,204 @@
+package io.branch.search;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.pm.LauncherApps;
+import android.content.pm.ShortcutInfo;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An {@link IBranchShortcutHandler} that caches the validation results of another handler,
+ * per package. This is useful when a search result contains many shortcut links into the same
+ * app, or when the same app shows up in consecutive searches.
+ *
+ * Cached results are dropped when the launcher reports that the shortcuts or the package have
+ * changed, through {@link LauncherApps.Callback}, and after {@link #MAX_AGE_MILLIS} in any case.
+ * Launches are not cached and are always forwarded to the wrapped handler.
+ *
+ * {@link IBranchShortcutHandler#DEFAULT} is already cached. A custom handler can be wrapped
+ * before being passed to {@link BranchConfiguration#setShortcutHandler(IBranchShortcutHandler)}:
+ * <pre>
+ * config.setShortcutHandler(new BranchCachingShortcutHandler(myHandler));
+ * </pre>
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class BranchCachingShortcutHandler implements IBranchShortcutHandler {
+
+    private static final long MAX_AGE_MILLIS = 1000 * 60 * 5; // 5 minutes
+
+    private final IBranchShortcutHandler delegate;
+    private final Map<String, PackageShortcuts> cache = new HashMap<>();
+    private boolean registered;
+
+    private static class PackageShortcuts {
+        private final long createdMillis = System.currentTimeMillis();
+        // All the valid ids, when the delegate can provide them.
+        @Nullable private Set<String> validIds;
+        // Otherwise, the result for each id that was checked.
+        private final Map<String, Boolean> checkedIds = new HashMap<>();
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() > createdMillis + MAX_AGE_MILLIS;
+        }
+    }
+
+    /**
+     * Creates a caching handler.
+     * @param delegate the handler that validates and launches shortcuts
+     */
+    public BranchCachingShortcutHandler(@NonNull IBranchShortcutHandler delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean validateShortcut(@NonNull Context context,
+                                    @NonNull String id,
+                                    @NonNull String packageName) {
+        Set<String> ids = new HashSet<>();
+        ids.add(id);
+        return getValidShortcutIds(context, packageName, ids).contains(id);
+    }
+
+    @Override
+    public boolean launchShortcut(@NonNull Context context,
+                                  @NonNull String id,
+                                  @NonNull String packageName) {
+        return delegate.launchShortcut(context, id, packageName);
+    }
+
+    /**
+     * Drops all cached results.
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Validates the given shortcut ids at once.
+     * @param context context
+     * @param packageName package name
+     * @param ids the ids to validate
+     * @return the valid ids among the given ones
+     */
+    @NonNull
+    Set<String> getValidShortcutIds(@NonNull Context context,
+                                    @NonNull String packageName,
+                                    @NonNull Set<String> ids) {
+        register(context);
+        PackageShortcuts shortcuts;
+        synchronized (cache) {
+            shortcuts = cache.get(packageName);
+            if (shortcuts == null || shortcuts.isExpired()) {
+                shortcuts = new PackageShortcuts();
+                cache.put(packageName, shortcuts);
+            }
+        }
+
+        // Validation is an IPC, so it is done outside of the cache lock. Two threads might
+        // validate the same package at the same time, which is harmless.
+        Set<String> valid = new HashSet<>();
+        if (delegate instanceof BranchDefaultShortcutHandler) {
+            Set<String> validIds;
+            synchronized (cache) {
+                validIds = shortcuts.validIds;
+            }
+            if (validIds == null) {
+                validIds = ((BranchDefaultShortcutHandler) delegate)
+                        .getValidShortcutIds(context, packageName);
+                synchronized (cache) {
+                    shortcuts.validIds = validIds;
+                }
+            }
+            for (String id : ids) {
+                if (validIds.contains(id)) valid.add(id);
+            }
+        } else {
+            for (String id : ids) {
+                Boolean result;
+                synchronized (cache) {
+                    result = shortcuts.checkedIds.get(id);
+                }
+                if (result == null) {
+                    result = delegate.validateShortcut(context, id, packageName);
+                    synchronized (cache) {
+                        shortcuts.checkedIds.put(id, result);
+                    }
+                }
+                if (result) valid.add(id);
+            }
+        }
+        return valid;
+    }
+
+    private void invalidate(@NonNull String packageName) {
+        synchronized (cache) {
+            cache.remove(packageName);
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private void register(@NonNull Context context) {
+        synchronized (cache) {
+            if (registered) return;
+            registered = true;
+        }
+        if (Build.VERSION.SDK_INT < 21) return;
+        try {
+            LauncherApps launcherApps = (LauncherApps) context.getApplicationContext()
+                    .getSystemService(Context.LAUNCHER_APPS_SERVICE);
+            // We might be called from a thread without a looper.
+            //noinspection ConstantConditions
+            launcherApps.registerCallback(new Callback(), new Handler(Looper.getMainLooper()));
+        } catch (Exception e) {
+            // Should not happen. We will rely on MAX_AGE_MILLIS.
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private class Callback extends LauncherApps.Callback {
+        @Override
+        public void onPackageRemoved(String packageName, UserHandle user) {
+            invalidate(packageName);
+        }
+
+        @Override
+        public void onPackageAdded(String packageName, UserHandle user) {
+            invalidate(packageName);
+        }
+
+        @Override
+        public void onPackageChanged(String packageName, UserHandle user) {
+            invalidate(packageName);
+        }
+
+        @Override
+        public void onPackagesAvailable(String[] packageNames, UserHandle user, boolean replacing) {
+            for (String packageName : packageNames) invalidate(packageName);
+        }
+
+        @Override
+        public void onPackagesUnavailable(String[] packageNames, UserHandle user, boolean replacing) {
+            for (String packageName : packageNames) invalidate(packageName);
+        }
+
+        @Override
+        public void onShortcutsChanged(@NonNull String packageName,
+                                       @NonNull List<ShortcutInfo> shortcuts,
+                                       @NonNull UserHandle user) {
+            invalidate(packageName);
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package io.branch.search;
+
+import android.Manifest;
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Persistent queue for click tracking events, see {@link BranchLinkResult#registerClickEvent()}.
+ *
+ * Clicks are not sent right away. They are appended to a queue which is written to disk, so
+ * that they survive process death, and sent in batches: a flush is scheduled
+ * {@link #BATCH_DELAY_MILLIS} after a click, so that a burst of clicks goes out together,
+ * and whenever connectivity comes back or the app goes to background.
+ *
+ * All the work is done on the {@link BranchSharedExecutor.Lane#CLICK} lane, which comes after
+ * all the search lanes, and only one request is in flight at a time, so clicks never compete
+ * with searches for threads or connections. A failed request is retried with exponential backoff,
+ * up to {@link #MAX_ATTEMPTS} times. Events that the server rejects are dropped.
+ *
+ * There is a single tracker per process, since it owns the queue file and registers
+ * system callbacks: it outlives re-initializations of {@link BranchSearch}.
+ *
+ * The lane runs the tracker's tasks one at a time, in order, so the queue and the I/O need
+ * no locking.
+ * The file uses the same kind of binary format as {@link BranchDiskCache}:
+ *
+ * - int: {@link #MAGIC}
+ * - byte: {@link #VERSION}
+ * - int: number of events
+ * - for each event: UTF url, long creation time, int attempts
+ */
+class BranchClickTracker {
+
+    private static final String FILE = "branch_clicks";
+    private static final int MAGIC = 0x4252434b; // BRCK
+    private static final byte VERSION = 1;
+
+    private static final int MAX_EVENTS = 100;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long MAX_AGE_MILLIS = 1000 * 60 * 60 * 24 * 7; // 7 days
+    private static final long BATCH_DELAY_MILLIS = 1000 * 3; // 3 seconds
+    private static final long MIN_BACKOFF_MILLIS = 1000 * 10; // 10 seconds
+    private static final long MAX_BACKOFF_MILLIS = 1000 * 60 * 10; // 10 minutes
+
+    private static BranchClickTracker sInstance;
+
+    private final Executor executor
+            = BranchSharedExecutor.getInstance().serialForLane(BranchSharedExecutor.Lane.CLICK);
+    private final Context context;
+    private boolean started;
+
+    // Only accessed by executor tasks, which run one at a time.
+    private List<Event> events;
+    private boolean sending;
+    private int failures;
+
+    private static class Event {
+        private final String url;
+        private final long createdMillis;
+        private int attempts;
+
+        private Event(@NonNull String url, long createdMillis, int attempts) {
+            this.url = url;
+            this.createdMillis = createdMillis;
+            this.attempts = attempts;
+        }
+    }
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    };
+
+    private final ComponentCallbacks2 backgroundCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_UI_HIDDEN) {
+                scheduleFlush(0, false);
+            }
+        }
+
+        @Override
+        public void onConfigurationChanged(@NonNull Configuration newConfig) { }
+
+        @Override
+        public void onLowMemory() { }
+    };
+
+    /**
+     * Returns the tracker, creating it if needed.
+     * @param context a context
+     * @return the tracker
+     */
+    @NonNull
+    static synchronized BranchClickTracker getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new BranchClickTracker(context);
+        }
+        return sInstance;
+    }
+
+    private BranchClickTracker(@NonNull Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Starts listening to connectivity and app background events. Registering the
+     * connectivity listener also flushes the events left by a previous session, since it is
+     * notified right away when there is a network. Does nothing if already started.
+     */
+    synchronized void start() {
+        if (started) return;
+        started = true;
+        // Like BranchTimeoutPolicy, the default network callback needs a permission that
+        // we don't require.
+        boolean registered = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && context.checkCallingOrSelfPermission(
+                Manifest.permission.ACCESS_NETWORK_STATE) == PackageManager.PERMISSION_GRANTED) {
+            try {
+                startNetworkCallback();
+                registered = true;
+            } catch (Exception ignore) { }
+        }
+        if (!registered) startLegacyMonitoring();
+        context.registerComponentCallbacks(backgroundCallbacks);
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private void startNetworkCallback() {
+        ConnectivityManager manager = (ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        //noinspection ConstantConditions
+        manager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                scheduleFlush(0, true);
+            }
+        });
+    }
+
+    /**
+     * Listens to the connectivity broadcast, which is deprecated but is all we have
+     * before API 24, or without the network state permission.
+     */
+    @SuppressWarnings("deprecation")
+    private void startLegacyMonitoring() {
+        // The sticky broadcast is delivered right away.
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context receiverContext, Intent intent) {
+                if (!intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+                    scheduleFlush(0, true);
+                }
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * Adds a click to the queue.
+     * @param url the click tracking url
+     */
+    void track(@NonNull final String url) {
+        final long now = System.currentTimeMillis();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Event> events = getEvents();
+                events.add(new Event(url, now, 0));
+                while (events.size() > MAX_EVENTS) {
+                    events.remove(0);
+                }
+                save();
+            }
+        });
+        scheduleFlush(BATCH_DELAY_MILLIS, false);
+    }
+
+    /**
+     * Schedules a flush.
+     * @param delayMillis the delay
+     * @param resetBackoff true to retry failed events right away
+     */
+    private void scheduleFlush(final long delayMillis, final boolean resetBackoff) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (resetBackoff) failures = 0;
+                // While backing off, the next flush is already scheduled.
+                if (failures > 0) return;
+                Util.removeFromUiThread(flush);
+                Util.runOnUiThread(flush, delayMillis);
+            }
+        });
+    }
+
+    @WorkerThread
+    private void flush() {
+        if (sending) return;
+        List<Event> events = getEvents();
+        long now = System.currentTimeMillis();
+        boolean changed = false;
+        Iterator<Event> iterator = events.iterator();
+        while (iterator.hasNext()) {
+            if (now > iterator.next().createdMillis + MAX_AGE_MILLIS) {
+                iterator.remove();
+                changed = true;
+            }
+        }
+        if (changed) save();
+        if (!events.isEmpty()) {
+            sending = true;
+            send(events.get(0));
+        }
+    }
+
+    @WorkerThread
+    private void send(@NonNull final Event event) {
+        Request request;
+        try {
+            request = new Request.Builder().get().url(event.url).build();
+        } catch (IllegalArgumentException e) {
+            // Not a valid url. Drop it.
+            onSent(event, true);
+            return;
+        }
+        BranchHttpClient.getForApi().newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                onSent(event, false);
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                // Retry server errors only. Other errors would fail again.
+                onSent(event, response.code() < 500);
+                response.close();
+            }
+        });
+    }
+
+    private void onSent(@NonNull final Event event, final boolean done) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Event> events = getEvents();
+                if (!done && ++event.attempts < MAX_ATTEMPTS) {
+                    save();
+                    sending = false;
+                    failures++;
+                    long backoff = MIN_BACKOFF_MILLIS << Math.min(failures - 1, 16);
+                    Util.removeFromUiThread(flush);
+                    Util.runOnUiThread(flush, Math.min(backoff, MAX_BACKOFF_MILLIS));
+                    return;
+                }
+                events.remove(event);
+                save();
+                failures = 0;
+                if (events.isEmpty()) {
+                    sending = false;
+                } else {
+                    send(events.get(0));
+                }
+            }
+        });
+    }
+
+    @WorkerThread
+    @NonNull
+    private List<Event> getEvents() {
+        if (events == null) {
+            events = new ArrayList<>();
+            try {
+                read(events);
+            } catch (IOException ignore) {
+                // Corrupted or half-written file. It will be replaced on next write.
+            }
+        }
+        return events;
+    }
+
+    @WorkerThread
+    private void read(@NonNull List<Event> events) throws IOException {
+        File file = getFile();
+        if (!file.exists()) return;
+        DataInputStream stream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (stream.readInt() != MAGIC || stream.readByte() != VERSION) return;
+            int count = stream.readInt();
+            for (int i = 0; i < count; i++) {
+                events.add(new Event(stream.readUTF(), stream.readLong(), stream.readInt()));
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    @WorkerThread
+    private void save() {
+        File file = getFile();
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream stream = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                stream.writeInt(MAGIC);
+                stream.writeByte(VERSION);
+                stream.writeInt(events.size());
+                for (Event event : events) {
+                    stream.writeUTF(event.url);
+                    stream.writeLong(event.createdMillis);
+                    stream.writeInt(event.attempts);
+                }
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            // Out of space or similar. Events are still in memory.
+            return;
+        }
+        // Rename is atomic, so we never read a half-written file.
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    @WorkerThread
+    @NonNull
+    private File getFile() {
+        return new File(context.getFilesDir(), FILE);
+    }
+}
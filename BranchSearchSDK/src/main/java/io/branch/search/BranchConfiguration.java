@@ -1,11 +1,9 @@
 package io.branch.search;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
-import android.os.AsyncTask;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
@@ -20,6 +18,13 @@ import java.lang.ref.WeakReference;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
 
 /**
  * Branch Configuration.  Use the Branch Configuration to override default Search options.
@@ -30,18 +35,35 @@ public class BranchConfiguration {
     final static String MANIFEST_KEY = "io.branch.sdk.BranchKey";
     private static final long SYNC_TIME_MILLIS = 1000 * 60 * 60; // 1 hour
 
-    private long lastSyncTimeMillis = 0L;
-    private final Object syncLock = new Object();
+    // Runs the periodic syncs and the GAID fetch.
+    private static final BranchExecutor SYNC_EXECUTOR = new BranchExecutor(1);
+
+    private volatile long lastSyncTimeMillis = 0L;
+    private final AtomicBoolean syncing = new AtomicBoolean();
+    private final AtomicInteger version = new AtomicInteger();
 
-    private String url = null;
-    private String key = null;
-    private String googleAdID = null;
-    private boolean isLat = false;
-    private Locale locale; // Overrides BranchDeviceInfo
-    private String countryCode;
+    // Values written by sync() in background and read by requests.
+    private volatile String url = null;
+    private volatile String key = null;
+    private volatile String googleAdID = null;
+    private volatile boolean isLat = false;
+    private volatile Locale locale; // Overrides BranchDeviceInfo
+    private volatile String countryCode;
     private int intentFlags = Intent.FLAG_ACTIVITY_NEW_TASK;
     private final Map<String, Object> requestExtra = new HashMap<>();
     private IBranchShortcutHandler shortcutHandler = IBranchShortcutHandler.DEFAULT;
+    private IBranchMetricsListener metricsListener = null;
+    private int resultCacheSizeBytes = 0; // Disabled
+    private long resultCacheTtlMillis = 1000 * 60 * 2; // 2 minutes
+    private long diskCacheSizeBytes = 256 * 1024; // 256 KB
+    private boolean localAutoSuggestEnabled = true;
+    private boolean lazyInitEnabled = false;
+    private int searchHedgingPercentile = 0;
+    private int searchHedgingBudgetPercent = 0;
+    private long searchDebounceMillis = 0L;
+    private long autoSuggestDebounceMillis = 0L;
+    private OkHttpClient okHttpClient = null;
+    private ConnectionPool connectionPool = null;
 
     // JSONKeys associated with a Configuration
     enum JSONKey {
@@ -76,6 +98,15 @@ public class BranchConfiguration {
      * @param context a context
      */
     void sync(@NonNull Context context) {
+        boolean traced = BranchTrace.begin("BranchConfiguration.sync");
+        try {
+            syncInternal(context);
+        } finally {
+            BranchTrace.end(traced);
+        }
+    }
+
+    private void syncInternal(@NonNull Context context) {
         // Check to see if the configuration already has a valid branch key. Fetch if not.
         if (!hasValidKey()) {
             fetchBranchKey(context);
@@ -96,6 +127,42 @@ public class BranchConfiguration {
         fetchGAID();
 
         lastSyncTimeMillis = System.currentTimeMillis();
+        version.incrementAndGet();
+    }
+
+    /**
+     * Returns a number that changes whenever the values written by
+     * {@link #addStaticConfigurationInfo(JSONObject)} change.
+     * @return the version
+     */
+    int getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Starts a sync in background if the last one is too old. This never blocks: until the
+     * sync completes, callers keep using the previous values.
+     */
+    void syncIfNeeded() {
+        if (System.currentTimeMillis() <= lastSyncTimeMillis + SYNC_TIME_MILLIS) return;
+        final BranchSearch search = BranchSearch.getInstance();
+        if (search == null) {
+            // Object being used but BranchSearch not initialized.
+            // This can happen in tests. Ignore.
+            return;
+        }
+        // Make sure that only one sync is running.
+        if (!syncing.compareAndSet(false, true)) return;
+        SYNC_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync(search.getApplicationContext());
+                } finally {
+                    syncing.set(false);
+                }
+            }
+        });
     }
 
     /**
@@ -145,6 +212,7 @@ public class BranchConfiguration {
     @NonNull
     public BranchConfiguration setBranchKey(@Nullable String key) {
         this.key = key;
+        version.incrementAndGet();
         return this;
     }
 
@@ -172,6 +240,7 @@ public class BranchConfiguration {
      */
     void limitAdTracking(boolean limit) {
         isLat = limit;
+        version.incrementAndGet();
     }
 
     /**
@@ -200,6 +269,7 @@ public class BranchConfiguration {
     @NonNull
     BranchConfiguration setGoogleAdID(@Nullable String id) {
         this.googleAdID = id;
+        version.incrementAndGet();
         return this;
     }
 
@@ -221,6 +291,7 @@ public class BranchConfiguration {
     @NonNull
     BranchConfiguration setLocale(@Nullable Locale locale) {
         this.locale = locale;
+        version.incrementAndGet();
         return this;
     }
 
@@ -233,6 +304,7 @@ public class BranchConfiguration {
     @NonNull
     BranchConfiguration setCountryCode(@Nullable String cc) {
         this.countryCode = cc;
+        version.incrementAndGet();
         return this;
     }
 
@@ -240,6 +312,35 @@ public class BranchConfiguration {
         return this.countryCode;
     }
 
+    /**
+     * Returns the locale and country that requests are sent with, to be used in cache keys.
+     * @param info the device info, whose locale is used unless overridden here
+     * @return a key
+     */
+    @NonNull
+    String getRegionKey(@NonNull BranchDeviceInfo info) {
+        Locale locale = this.locale;
+        return (locale != null ? locale.toString() : info.getLocale()) + "|" + countryCode;
+    }
+
+    /**
+     * Returns the configuration that search responses depend on, to be used in cache keys:
+     * the region (see {@link #getRegionKey(BranchDeviceInfo)}), the Branch key and the
+     * request extras.
+     * @param info the device info
+     * @return a key
+     */
+    @NonNull
+    String getCacheKey(@NonNull BranchDeviceInfo info) {
+        StringBuilder builder = new StringBuilder(getRegionKey(info));
+        builder.append('|').append(key);
+        if (!requestExtra.isEmpty()) {
+            // Sort the extras so that insertion order does not matter.
+            builder.append('|').append(new TreeMap<>(requestExtra));
+        }
+        return builder.toString();
+    }
+
     /**
      * Retrieves the Branch Key from the Package Manager Metadata.
      * @param context Context
@@ -258,18 +359,17 @@ public class BranchConfiguration {
     }
 
     /**
-     * Retrieves the Google Ad ID from the play-services library.
+     * Retrieves the Google Ad ID from the play-services library, in background.
      * Note that this is the only place where the dependency for play-services-ads is needed.
      */
-    @SuppressLint("StaticFieldLeak")
     private void fetchGAID() {
-        new AsyncTask<Void, Void, Void>() {
+        SYNC_EXECUTOR.execute(new Runnable() {
             @Override
-            protected Void doInBackground(Void... voids) {
+            public void run() {
                 try {
                     BranchSearch search = BranchSearch.getInstance();
                     if (search == null) {
-                        return null;
+                        return;
                     }
                     Context context = search.getApplicationContext();
                     BranchConfiguration config = search.getBranchConfiguration();
@@ -286,9 +386,8 @@ public class BranchConfiguration {
                     // our dependency or in case of bad AAR implementation.
                     Log.i("BranchConfiguration", "Could not find the play-services lib.");
                 }
-                return null;
             }
-        }.execute();
+        });
     }
 
     /**
@@ -327,29 +426,260 @@ public class BranchConfiguration {
         return shortcutHandler;
     }
 
+    /**
+     * Sets a listener for SDK metrics: the timeline of each request (payload, queueing, network
+     * phases, decryption, parsing and result processing) and counters for cancellations,
+     * coalesced requests and cache hits. Metrics are not collected without a listener.
+     * This must be called before {@link BranchSearch#init}.
+     * @param metricsListener the listener, or null to disable metrics
+     * @return this BranchConfiguration
+     */
+    @SuppressWarnings({"WeakerAccess", "unused", "UnusedReturnValue"})
+    @NonNull
+    public BranchConfiguration setMetricsListener(@Nullable IBranchMetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        return this;
+    }
+
+    @Nullable
+    IBranchMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    /**
+     * Sets the memory budget for the in-memory search result cache. Search requests that
+     * match a previous request (same normalized query, limits, query source, extras and
+     * approximate location) are served from this cache without hitting the network.
+     * A cached result replays the original response, including its click tracking urls,
+     * so clicks on it are attributed to the original request.
+     *
+     * The cache is disabled by default, pass a positive size to enable it, or 0 to disable it.
+     * This must be called before {@link BranchSearch#init}.
+     * @param maxSizeBytes the approximate cache size, in bytes
+     * @return this BranchConfiguration
+     */
+    @SuppressWarnings({"WeakerAccess", "unused", "UnusedReturnValue"})
+    @NonNull
+    public BranchConfiguration setResultCacheSize(int maxSizeBytes) {
+        this.resultCacheSizeBytes = Math.max(0, maxSizeBytes);
+        return this;
+    }
+
+    /**
+     * Sets how long a cached search result stays valid.
+     * Pass 0 to disable the cache. This must be called before {@link BranchSearch#init}.
+     * @see #setResultCacheSize(int)
+     * @param ttlMillis the time to live, in milliseconds
+     * @return this BranchConfiguration
+     */
+    @SuppressWarnings({"WeakerAccess", "unused", "UnusedReturnValue"})
+    @NonNull
+    public BranchConfiguration setResultCacheTimeToLive(long ttlMillis) {
+        this.resultCacheTtlMillis = Math.max(0, ttlMillis);
+        return this;
+    }
+
+    int getResultCacheSize() {
+        return resultCacheSizeBytes;
+    }
+
+    long getResultCacheTimeToLive() {
+        return resultCacheTtlMillis;
+    }
+
+    /**
+     * Sets the maximum size of the on-disk cache for query hint and autosuggest responses.
+     * Cached responses are served immediately, even across app restarts, and refreshed
+     * in the background when they get old. Pass 0 to disable the cache.
+     * This must be called before {@link BranchSearch#init}.
+     * @param maxSizeBytes the maximum cache size, in bytes
+     * @return this BranchConfiguration
+     */
+    @SuppressWarnings({"WeakerAccess", "unused", "UnusedReturnValue"})
+    @NonNull
+    public BranchConfiguration setDiskCacheSize(long maxSizeBytes) {
+        this.diskCacheSizeBytes = Math.max(0, maxSizeBytes);
+        return this;
+    }
+
+    long getDiskCacheSize() {
+        return diskCacheSizeBytes;
+    }
+
+    /**
+     * Enables or disables local autosuggestions. When enabled, the SDK indexes previous
+     * autosuggest results, query hints and searches, so that
+     * {@link BranchSearch#localAutoSuggest(BranchAutoSuggestRequest)} can answer without a
+     * network call. Local suggestions are also merged into server autosuggest results,
+     * see {@link BranchAutoSuggestion#isLocal()}.
+     * This must be called before {@link BranchSearch#init}.
+     * @param enabled true to enable
+     * @return this BranchConfiguration
+     */
+    @SuppressWarnings({"WeakerAccess", "unused", "UnusedReturnValue"})
+    @NonNull
+    public BranchConfiguration setLocalAutoSuggestEnabled(boolean enabled) {
+        this.localAutoSuggestEnabled = enabled;
+        return this;
+    }
+
+    boolean isLocalAutoSuggestEnabled() {
+        return localAutoSuggestEnabled;
+    }
+
+    /**
+     * Enables or disables lazy initialization. By default, {@link BranchSearch#init} reads the
+     * device info and the configuration values (like the Branch key from the manifest)
+     * synchronously, which can take a few milliseconds on the main thread at app startup.
+     *
+     * When enabled, {@link BranchSearch#init} returns immediately and this work is done in
+     * background. Requests made in the meantime are held and sent once it completes.
+     * Since the Branch key is checked in background, an invalid key is only reported in logs,
+     * after which {@link BranchSearch#getInstance()} returns null and held requests receive
+     * an error: {@link BranchSearchError.ERR_CODE#SERVICE_DISABLED_ERR} if the service is
+     * disabled for the key, {@link BranchSearchError.ERR_CODE#UNAUTHORIZED_ERR} otherwise.
+     * This must be called before {@link BranchSearch#init}.
+     * @param enabled true to enable
+     * @return this BranchConfiguration
+     */
+    @SuppressWarnings({"WeakerAccess", "unused", "UnusedReturnValue"})
+    @NonNull
+    public BranchConfiguration setLazyInitEnabled(boolean enabled) {
+        this.lazyInitEnabled = enabled;
+        return this;
+    }
+
+    boolean isLazyInitEnabled() {
+        return lazyInitEnabled;
+    }
+
+    /**
+     * Enables hedging for search requests. When a search request did not get a response after
+     * the given percentile of recent search round trip times, a duplicate request is sent on a
+     * separate connection. The first response is delivered and the other request is canceled.
+     * This trades a little extra traffic for a shorter latency tail on flaky networks.
+     * This must be called before {@link BranchSearch#init}.
+     * @param percentile the round trip time percentile that triggers a hedge, for example 90,
+     *                   or 0 to disable hedging
+     * @param budgetPercent the maximum percentage of search requests that can be hedged
+     * @return this BranchConfiguration
+     */
+    @SuppressWarnings({"WeakerAccess", "unused", "UnusedReturnValue"})
+    @NonNull
+    public BranchConfiguration setSearchHedging(int percentile, int budgetPercent) {
+        this.searchHedgingPercentile = Math.max(0, Math.min(percentile, 99));
+        this.searchHedgingBudgetPercent = Math.max(0, Math.min(budgetPercent, 100));
+        return this;
+    }
+
+    int getSearchHedgingPercentile() {
+        return searchHedgingPercentile;
+    }
+
+    int getSearchHedgingBudgetPercent() {
+        return searchHedgingBudgetPercent;
+    }
+
+    /**
+     * Sets a debounce window for search requests. When set, requests are held for this
+     * amount of time and replaced by newer requests fired in the meantime, so that only the
+     * last request of a burst reaches the network. Replaced requests receive a
+     * {@link BranchSearchError.ERR_CODE#REQUEST_CANCELED} error.
+     * This must be called before {@link BranchSearch#init}.
+     * @param debounceMillis the debounce window, or 0 to disable
+     * @return this BranchConfiguration
+     */
+    @SuppressWarnings({"WeakerAccess", "unused", "UnusedReturnValue"})
+    @NonNull
+    public BranchConfiguration setSearchDebounce(long debounceMillis) {
+        this.searchDebounceMillis = Math.max(0, debounceMillis);
+        return this;
+    }
+
+    /**
+     * Sets a debounce window for autosuggest requests.
+     * This must be called before {@link BranchSearch#init}.
+     * @see #setSearchDebounce(long)
+     * @param debounceMillis the debounce window, or 0 to disable
+     * @return this BranchConfiguration
+     */
+    @SuppressWarnings({"WeakerAccess", "unused", "UnusedReturnValue"})
+    @NonNull
+    public BranchConfiguration setAutoSuggestDebounce(long debounceMillis) {
+        this.autoSuggestDebounceMillis = Math.max(0, debounceMillis);
+        return this;
+    }
+
+    long getSearchDebounce() {
+        return searchDebounceMillis;
+    }
+
+    long getAutoSuggestDebounce() {
+        return autoSuggestDebounceMillis;
+    }
+
+    /**
+     * Sets the {@link OkHttpClient} that the SDK should use for its network requests.
+     * The SDK derives its own clients from this one through {@link OkHttpClient#newBuilder()},
+     * which means that they will share its connection pool and dispatcher. If your app talks to
+     * Branch servers with its own client, passing it here lets both reuse the same connections.
+     * This must be called before {@link BranchSearch#init}.
+     * @param client a client, or null to use the default one
+     * @return this BranchConfiguration
+     */
+    @SuppressWarnings({"WeakerAccess", "unused", "UnusedReturnValue"})
+    @NonNull
+    public BranchConfiguration setOkHttpClient(@Nullable OkHttpClient client) {
+        this.okHttpClient = client;
+        return this;
+    }
+
+    /**
+     * Tunes the connection pool shared by all SDK requests, including DeepView images.
+     * This overrides the pool of the client passed to {@link #setOkHttpClient(OkHttpClient)}.
+     * This must be called before {@link BranchSearch#init}.
+     * @param maxIdleConnections the maximum number of idle connections to keep
+     * @param keepAliveMillis how long to keep an idle connection alive
+     * @return this BranchConfiguration
+     */
+    @SuppressWarnings({"WeakerAccess", "unused", "UnusedReturnValue"})
+    @NonNull
+    public BranchConfiguration setConnectionPool(int maxIdleConnections, long keepAliveMillis) {
+        this.connectionPool = new ConnectionPool(maxIdleConnections,
+                keepAliveMillis, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    @Nullable
+    OkHttpClient getOkHttpClient() {
+        return okHttpClient;
+    }
+
+    @Nullable
+    ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
     /**
      * Add Configuration Information to a JSON object.
      */
     void addConfigurationInfo(@NonNull JSONObject jsonObject) {
         // Anytime we're being used, see if we should re-sync.
-        // Synchronize just in case someone fires requests from different threads at once.
-        synchronized (syncLock) {
-            long now = System.currentTimeMillis();
-            if (now > lastSyncTimeMillis + SYNC_TIME_MILLIS) {
-                BranchSearch search = BranchSearch.getInstance();
-                if (search != null) {
-                    sync(search.getApplicationContext());
-                } else {
-                    // Object being used but BranchSearch not initialized.
-                    // This can happen in tests. Ignore.
-                }
-            }
-        }
+        syncIfNeeded();
+        addStaticConfigurationInfo(jsonObject);
+        addDynamicConfigurationInfo(jsonObject);
+    }
 
-        // Write.
+    /**
+     * Add the Configuration Information that only changes on sync or through setters
+     * to a JSON object. This includes the locale override, so it must be called after
+     * {@link BranchDeviceInfo#addStaticDeviceInfo(JSONObject)}.
+     */
+    void addStaticConfigurationInfo(@NonNull JSONObject jsonObject) {
         try {
             jsonObject.putOpt(JSONKey.BranchKey.toString(), getBranchKey());
             jsonObject.putOpt(JSONKey.Country.toString(), countryCode);
+            Locale locale = this.locale;
             if (locale != null) {
                 jsonObject.putOpt(JSONKey.Locale.toString(), locale.getDisplayName());
             }
@@ -357,7 +687,15 @@ public class BranchConfiguration {
             // Pass the GAID and the LAT flag.
             jsonObject.putOpt(JSONKey.GAID.toString(), getGoogleAdID());
             jsonObject.putOpt(JSONKey.LAT.toString(), (isAdTrackingLimited() ? 1 : 0));
+        } catch (JSONException ignore) {
+        }
+    }
 
+    /**
+     * Add the Configuration Information that can change on every request to a JSON object.
+     */
+    void addDynamicConfigurationInfo(@NonNull JSONObject jsonObject) {
+        try {
             // Add extra request data.
             // The JSONObject for this key might already exist because the key is shared
             // between this class and BranchDiscoveryRequest.
@@ -48,7 +48,6 @@ import java.io.InputStream;
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.HttpUrl;
-import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 
@@ -61,11 +60,11 @@ public class BranchDeepViewFragment {
     public static final String TAG = "BranchDeepViewFragment";
 
     private static final String KEY_LINK = "link";
-    private static final OkHttpClient CLIENT = new OkHttpClient.Builder().build();
 
     private static final String PLAY_STORE_APP_URL_PREFIX
             = "https://play.google.com/store/apps/details?id=";
     private static final String APP_ICON_URL_SMALL_SUFFIX = "=s90";
+    private static final String IMAGE_TRACE_NAME = "BranchDeepViewFragment.loadImage";
 
     @NonNull
     static DialogFragment getInstance(@NonNull BranchLinkResult link) {
@@ -245,6 +244,17 @@ public class BranchDeepViewFragment {
     private static void loadImage(@NonNull final ImageView imageView,
                                   @Nullable String url,
                                   @DimenRes final int cornersRes) {
+        boolean traced = BranchTrace.begin("BranchDeepViewFragment.loadImage");
+        try {
+            startImageLoad(imageView, url, cornersRes);
+        } finally {
+            BranchTrace.end(traced);
+        }
+    }
+
+    private static void startImageLoad(@NonNull final ImageView imageView,
+                                       @Nullable String url,
+                                       @DimenRes final int cornersRes) {
         Context context = imageView.getContext();
         final Resources resources = context.getResources();
         CircularProgressDrawable progress = new CircularProgressDrawable(context);
@@ -259,9 +269,11 @@ public class BranchDeepViewFragment {
             imageView.setVisibility(View.GONE);
         } else {
             Request request = new Request.Builder().url(httpUrl).build();
-            CLIENT.newCall(request).enqueue(new Callback() {
+            final int traceCookie = BranchTrace.beginAsync(IMAGE_TRACE_NAME);
+            BranchHttpClient.get().newCall(request).enqueue(new Callback() {
                 @Override
                 public void onFailure(Call call, IOException e) {
+                    BranchTrace.endAsync(IMAGE_TRACE_NAME, traceCookie);
                     imageView.post(new Runnable() {
                         @Override
                         public void run() {
@@ -273,6 +285,7 @@ public class BranchDeepViewFragment {
                 @Override
                 public void onResponse(Call call, Response response) throws IOException {
                     InputStream stream = null;
+                    boolean traced = BranchTrace.begin("BranchDeepViewFragment.decodeImage");
                     try {
                         // Body is not null as per docs
                         //noinspection ConstantConditions
@@ -301,6 +314,8 @@ public class BranchDeepViewFragment {
                             }
                         });
                     } finally {
+                        BranchTrace.end(traced);
+                        BranchTrace.endAsync(IMAGE_TRACE_NAME, traceCookie);
                         if (stream != null) {
                             stream.close();
                         }
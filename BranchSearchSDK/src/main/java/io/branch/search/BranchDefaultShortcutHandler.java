@@ -0,0 +1,79 @@
+package io.branch.search;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.pm.LauncherApps;
+import android.content.pm.ShortcutInfo;
+import android.os.Build;
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The default {@link IBranchShortcutHandler}, backed by {@link LauncherApps}.
+ *
+ * Besides the single-shortcut validation, this can return all the valid shortcut ids of
+ * a package with a single {@link LauncherApps#getShortcuts(LauncherApps.ShortcutQuery,
+ * android.os.UserHandle)} call. {@link BranchResultProcessor} uses it to validate all the
+ * links of an app at once.
+ */
+@SuppressLint("NewApi")
+class BranchDefaultShortcutHandler implements IBranchShortcutHandler {
+
+    @Override
+    public boolean validateShortcut(@NonNull Context context,
+                                    @NonNull String id,
+                                    @NonNull String packageName) {
+        return getValidShortcutIds(context, packageName).contains(id);
+    }
+
+    @Override
+    public boolean launchShortcut(@NonNull Context context,
+                                  @NonNull String id,
+                                  @NonNull String packageName) {
+        if (Build.VERSION.SDK_INT < 25) return false;
+        try {
+            LauncherApps apps = context.getSystemService(LauncherApps.class);
+            apps.startShortcut(packageName, id, null, null,
+                    Process.myUserHandle());
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the ids of all the enabled shortcuts for the given package.
+     * @param context context
+     * @param packageName package name
+     * @return a set of ids, possibly empty
+     */
+    @NonNull
+    Set<String> getValidShortcutIds(@NonNull Context context, @NonNull String packageName) {
+        Set<String> ids = new HashSet<>();
+        if (Build.VERSION.SDK_INT < 25) return ids;
+        LauncherApps launcherApps = context.getSystemService(LauncherApps.class);
+        try {
+            LauncherApps.ShortcutQuery query = new LauncherApps.ShortcutQuery();
+            query.setQueryFlags(LauncherApps.ShortcutQuery.FLAG_MATCH_DYNAMIC
+                    | LauncherApps.ShortcutQuery.FLAG_MATCH_MANIFEST
+                    | LauncherApps.ShortcutQuery.FLAG_MATCH_PINNED);
+            query.setPackage(packageName);
+            //noinspection ConstantConditions
+            List<ShortcutInfo> shortcuts = launcherApps.getShortcuts(query, Process.myUserHandle());
+            if (shortcuts != null) {
+                for (ShortcutInfo shortcut : shortcuts) {
+                    if (shortcut.isEnabled()) {
+                        ids.add(shortcut.getId());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // Not a launcher, not installed, invalid, ....
+        }
+        return ids;
+    }
+}
@@ -17,30 +17,63 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Branch DeviceInfo.
  *
  * Just like {@link BranchConfiguration}, this class must be synced before using through
  * {@link #sync(Context)}. The class will also sync automatically anytime it's used in
- * {@link #addDeviceInfo(JSONObject)}, with a 1-hour interval between checks.
- * This ensures that information here is always up to date.
+ * {@link #addDeviceInfo(JSONObject)} or {@link #syncIfNeeded()}, with a 1-hour interval
+ * between checks. This ensures that information here is always up to date.
+ *
+ * These automatic syncs run in background, since they involve system services. Synced values
+ * are published as an immutable snapshot through a volatile field, so building a request
+ * never blocks on a sync.
+ *
+ * Values are split between static ones, that only change on sync and can be serialized once
+ * (see {@link BranchPayload}), and dynamic ones like the user location.
  */
 class BranchDeviceInfo {
     @VisibleForTesting static final String UNKNOWN_CARRIER = "bnc_no_value";
     @VisibleForTesting static final String DEFAULT_LOCALE = "en-US";
     private static final long SYNC_TIME_MILLIS = 1000 * 60 * 60; // 1 hour
 
-    private String carrierName = UNKNOWN_CARRIER;
-    private DisplayMetrics displayMetrics = null;
-    private String locale = DEFAULT_LOCALE;
-    private String appPackage = null;
-    private String appVersion = null;
+    private static final BranchExecutor SYNC_EXECUTOR = new BranchExecutor(1);
+
+    /**
+     * The values collected by {@link #sync(Context)}. Never modified once published,
+     * so readers can use a snapshot without locking.
+     */
+    private static class Snapshot {
+        private final String carrierName;
+        @Nullable private final DisplayMetrics displayMetrics;
+        private final String locale;
+        @Nullable private final String appPackage;
+        @Nullable private final String appVersion;
+
+        private Snapshot(@NonNull String carrierName,
+                         @Nullable DisplayMetrics displayMetrics,
+                         @NonNull String locale,
+                         @Nullable String appPackage,
+                         @Nullable String appVersion) {
+            this.carrierName = carrierName;
+            this.displayMetrics = displayMetrics;
+            this.locale = locale;
+            this.appPackage = appPackage;
+            this.appVersion = appVersion;
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(UNKNOWN_CARRIER, null,
+            DEFAULT_LOCALE, null, null);
     double latitude = 0.0;
     double longitude = 0.0;
 
-    private long lastSyncTimeMillis = 0L;
-    private final Object syncLock = new Object();
+    private volatile long lastSyncTimeMillis = 0L;
+    private final AtomicBoolean syncing = new AtomicBoolean();
+    private final AtomicInteger version = new AtomicInteger();
 
     enum JSONKey {
         Brand("brand"),
@@ -84,7 +117,17 @@ class BranchDeviceInfo {
      * @param context a context
      */
     void sync(@NonNull Context context) {
+        boolean traced = BranchTrace.begin("BranchDeviceInfo.sync");
+        try {
+            syncInternal(context);
+        } finally {
+            BranchTrace.end(traced);
+        }
+    }
+
+    private void syncInternal(@NonNull Context context) {
         // Check for carrier name.
+        String carrierName = null;
         try {
             TelephonyManager manager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
             carrierName = manager.getNetworkOperatorName();
@@ -97,6 +140,7 @@ class BranchDeviceInfo {
         // Apparently the display can be null in some cases.
         WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
         Display display;
+        DisplayMetrics displayMetrics;
         if (windowManager != null && (display = windowManager.getDefaultDisplay()) != null) {
             displayMetrics = new DisplayMetrics();
             display.getMetrics(displayMetrics);
@@ -106,6 +150,7 @@ class BranchDeviceInfo {
 
         // Check for locale.
         Locale localeObject;
+        String locale;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
             localeObject = context.getResources().getConfiguration().getLocales().get(0);
         } else {
@@ -118,7 +163,8 @@ class BranchDeviceInfo {
         }
 
         // Check for app version and package.
-        appPackage = context.getPackageName();
+        String appPackage = context.getPackageName();
+        String appVersion = null;
         try {
             PackageInfo info = context.getPackageManager().getPackageInfo(appPackage, 0);
             appVersion = info.versionName;
@@ -126,7 +172,43 @@ class BranchDeviceInfo {
             // Can't happen.
         }
 
+        snapshot = new Snapshot(carrierName, displayMetrics, locale, appPackage, appVersion);
         lastSyncTimeMillis = System.currentTimeMillis();
+        version.incrementAndGet();
+    }
+
+    /**
+     * Returns a number that changes whenever the static values change.
+     * @return the version
+     */
+    int getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Starts a sync in background if the last one is too old. This never blocks: until the
+     * sync completes, callers keep using the previous values.
+     */
+    void syncIfNeeded() {
+        if (System.currentTimeMillis() <= lastSyncTimeMillis + SYNC_TIME_MILLIS) return;
+        final BranchSearch search = BranchSearch.getInstance();
+        if (search == null) {
+            // Object being used but BranchSearch not initialized.
+            // This can happen in tests. Ignore.
+            return;
+        }
+        // Make sure that only one sync is running.
+        if (!syncing.compareAndSet(false, true)) return;
+        SYNC_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync(search.getApplicationContext());
+                } finally {
+                    syncing.set(false);
+                }
+            }
+        });
     }
 
     /**
@@ -156,19 +238,19 @@ class BranchDeviceInfo {
     @VisibleForTesting
     @NonNull
     String getLocale() {
-        return locale;
+        return snapshot.locale;
     }
 
     @VisibleForTesting
     @Nullable
     String getAppPackage() {
-        return appPackage;
+        return snapshot.appPackage;
     }
 
     @VisibleForTesting
     @Nullable
     String getAppVersion() {
-        return appVersion;
+        return snapshot.appVersion;
     }
 
     /**
@@ -202,7 +284,7 @@ class BranchDeviceInfo {
     @VisibleForTesting
     @NonNull
     String getCarrier() {
-        return carrierName;
+        return snapshot.carrierName;
     }
 
     /**
@@ -210,21 +292,15 @@ class BranchDeviceInfo {
      */
     void addDeviceInfo(@NonNull JSONObject jsonObject) {
         // Anytime we're being used, see if we should re-sync.
-        // Synchronize just in case someone fires requests from different threads at once.
-        synchronized (syncLock) {
-            long now = System.currentTimeMillis();
-            if (now > lastSyncTimeMillis + SYNC_TIME_MILLIS) {
-                BranchSearch search = BranchSearch.getInstance();
-                if (search != null) {
-                    sync(search.getApplicationContext());
-                } else {
-                    // Object being used but BranchSearch not initialized.
-                    // This can happen in tests. Ignore.
-                }
-            }
-        }
+        syncIfNeeded();
+        addStaticDeviceInfo(jsonObject);
+        addDynamicDeviceInfo(jsonObject);
+    }
 
-        // Write.
+    /**
+     * Add the Device Information that only changes on sync to a JSON object.
+     */
+    void addStaticDeviceInfo(@NonNull JSONObject jsonObject) {
         addDeviceInfo(jsonObject, JSONKey.Brand.toString(), getBrand());
         addDeviceInfo(jsonObject, JSONKey.Carrier.toString(), getCarrier());
         addDeviceInfo(jsonObject, JSONKey.Locale.toString(), getLocale());
@@ -233,13 +309,12 @@ class BranchDeviceInfo {
         addDeviceInfo(jsonObject, JSONKey.OS.toString(), "ANDROID");
         addDeviceInfo(jsonObject, JSONKey.SDK.toString(), "discovery_android");
         addDeviceInfo(jsonObject, JSONKey.SDKVersion.toString(), BranchSearch.getVersion());
+        DisplayMetrics displayMetrics = snapshot.displayMetrics;
         if (displayMetrics != null) {
             addDeviceInfo(jsonObject, JSONKey.ScreenDpi.toString(), displayMetrics.densityDpi);
             addDeviceInfo(jsonObject, JSONKey.ScreenWidth.toString(), displayMetrics.widthPixels);
             addDeviceInfo(jsonObject, JSONKey.ScreenHeight.toString(), displayMetrics.heightPixels);
         }
-        addDeviceInfo(jsonObject, JSONKey.Latitude.toString(), latitude);
-        addDeviceInfo(jsonObject, JSONKey.Longitude.toString(), longitude);
         String appPackage = getAppPackage();
         String appVersion = getAppVersion();
         if (appPackage != null) {
@@ -250,6 +325,14 @@ class BranchDeviceInfo {
         }
     }
 
+    /**
+     * Add the Device Information that can change on every request to a JSON object.
+     */
+    void addDynamicDeviceInfo(@NonNull JSONObject jsonObject) {
+        addDeviceInfo(jsonObject, JSONKey.Latitude.toString(), latitude);
+        addDeviceInfo(jsonObject, JSONKey.Longitude.toString(), longitude);
+    }
+
     private static <T> void addDeviceInfo(@NonNull JSONObject jsonObject,
                                           @NonNull String key,
                                           @Nullable T value) {
@@ -96,6 +96,11 @@ public class BranchDiscoveryRequest<T extends BranchDiscoveryRequest> {
         return (T) this;
     }
 
+    @NonNull
+    Map<String, Object> getExtra() {
+        return extra;
+    }
+
     @NonNull
     JSONObject toJson() {
         JSONObject object = new JSONObject();
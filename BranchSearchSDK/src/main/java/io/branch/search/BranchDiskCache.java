@@ -0,0 +1,364 @@
+package io.branch.search;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Persistent cache for the query hint and autosuggest channels.
+ *
+ * Each response is stored in its own file as a list of strings, in a compact binary format
+ * that can be read back with a {@link DataInputStream} without going through JSON:
+ *
+ * - int: {@link #MAGIC}
+ * - byte: {@link #VERSION}
+ * - long: time at which the response was received
+ * - UTF: the cache key, to detect file name collisions
+ * - int: number of strings
+ * - UTF: each string
+ *
+ * Entries are served following a stale-while-revalidate policy: an entry younger than its
+ * channel max age is served as is, an older entry is still served but should be refreshed
+ * in the background, and an entry older than the stale limit is ignored.
+ *
+ * Keys include the request locale and country, since responses depend on them.
+ *
+ * All I/O happens on a single background thread, so reads and writes are executed in order.
+ * The directory is capped at the given size by removing the least recently written files.
+ * The directory size is computed once, then kept up to date on each write, and files are
+ * only listed again when it goes over the limit. Trimming goes a bit below the limit, so
+ * that this does not happen on every write once the cache is full.
+ */
+class BranchDiskCache {
+
+    private static final String DIRECTORY = "branch_search";
+    private static final int MAGIC = 0x42524443; // BRDC
+    private static final byte VERSION = 1;
+
+    private static final float TRIM_RATIO = 0.75f;
+
+    /**
+     * The channels stored in this cache, with their max age and stale limit.
+     */
+    enum Channel {
+        QUERYHINT(1000 * 60 * 60, // 1 hour
+                1000 * 60 * 60 * 24 * 7), // 7 days
+        AUTOSUGGEST(1000 * 60 * 10, // 10 minutes
+                1000 * 60 * 60 * 24); // 1 day
+
+        private final long maxAgeMillis;
+        private final long maxStaleMillis;
+
+        Channel(long maxAgeMillis, long maxStaleMillis) {
+            this.maxAgeMillis = maxAgeMillis;
+            this.maxStaleMillis = maxStaleMillis;
+        }
+    }
+
+    private final BranchExecutor executor = new BranchExecutor(1);
+    private final Context context;
+    private final long maxSizeBytes;
+    private File directory;
+    private long sizeBytes = -1; // Only accessed on the cache thread.
+
+    /**
+     * A cache entry.
+     */
+    static class Entry {
+        final long timestampMillis;
+        final List<String> values;
+        private final long maxAgeMillis;
+
+        private Entry(long timestampMillis, @NonNull List<String> values, long maxAgeMillis) {
+            this.timestampMillis = timestampMillis;
+            this.values = values;
+            this.maxAgeMillis = maxAgeMillis;
+        }
+
+        /**
+         * @return true if this entry should be refreshed
+         */
+        boolean isStale() {
+            return System.currentTimeMillis() > timestampMillis + maxAgeMillis;
+        }
+    }
+
+    /**
+     * Receives the result of {@link #get(String, Callback)}, on the cache thread.
+     */
+    interface Callback {
+        @WorkerThread
+        void onLoaded(@Nullable Entry entry);
+    }
+
+    /**
+     * Receives the result of {@link #getAll(Channel, String, EntriesCallback)},
+     * on the cache thread.
+     */
+    interface EntriesCallback {
+        @WorkerThread
+        void onLoaded(@NonNull List<Entry> entries);
+    }
+
+    BranchDiskCache(@NonNull Context context, long maxSizeBytes) {
+        this.context = context.getApplicationContext();
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    @NonNull
+    static String createKey(@NonNull BranchQueryHintRequest request,
+                            @NonNull BranchConfiguration config,
+                            @NonNull BranchDeviceInfo info) {
+        return createKeyPrefix(Channel.QUERYHINT, config, info)
+                + request.getMaxResults()
+                + extraKey(request);
+    }
+
+    @NonNull
+    static String createKey(@NonNull BranchAutoSuggestRequest request,
+                            @NonNull BranchConfiguration config,
+                            @NonNull BranchDeviceInfo info) {
+        return createKeyPrefix(Channel.AUTOSUGGEST, config, info)
+                + request.getMaxResults()
+                + "|" + BranchResultCache.normalizeQuery(request.getQuery())
+                + extraKey(request);
+    }
+
+    /**
+     * Returns the common prefix of the keys of the given channel, for the current region.
+     * @see #getAll(Channel, String, EntriesCallback)
+     */
+    @NonNull
+    static String createKeyPrefix(@NonNull Channel channel,
+                                  @NonNull BranchConfiguration config,
+                                  @NonNull BranchDeviceInfo info) {
+        String name = channel == Channel.QUERYHINT ? "hint|" : "suggest|";
+        return name + config.getRegionKey(info) + "|";
+    }
+
+    @NonNull
+    private static String extraKey(@NonNull BranchDiscoveryRequest<?> request) {
+        Map<String, Object> extra = request.getExtra();
+        return extra.isEmpty() ? "" : "|" + new TreeMap<>(extra);
+    }
+
+    /**
+     * Loads the entry for the given key. The callback receives null if there's no entry,
+     * or if it is too old to be served.
+     * @param channel the channel of the key
+     * @param key the key
+     * @param callback the callback
+     */
+    void get(@NonNull final Channel channel,
+             @NonNull final String key,
+             @NonNull final Callback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Entry entry = null;
+                try {
+                    entry = read(channel, key);
+                } catch (IOException ignore) {
+                    // Corrupted or half-written file. It will be replaced on next write.
+                }
+                callback.onLoaded(entry);
+            }
+        });
+    }
+
+    /**
+     * Loads all the entries of the given channel whose key starts with the given prefix,
+     * skipping the ones that are too old to be served. This reads the whole directory.
+     * @param channel the channel
+     * @param keyPrefix a prefix from {@link #createKeyPrefix(Channel, BranchConfiguration, BranchDeviceInfo)}
+     * @param callback the callback
+     */
+    void getAll(@NonNull final Channel channel,
+                @NonNull final String keyPrefix,
+                @NonNull final EntriesCallback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Entry> entries = new ArrayList<>();
+                File[] files = getDirectory().listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.getName().endsWith(".tmp")) continue;
+                        try {
+                            Entry entry = read(file, channel, keyPrefix, true);
+                            if (entry != null) entries.add(entry);
+                        } catch (IOException ignore) {
+                            // Corrupted or half-written file. Skip it.
+                        }
+                    }
+                }
+                callback.onLoaded(entries);
+            }
+        });
+    }
+
+    /**
+     * Stores the given values for the given key.
+     * @param key the key
+     * @param values the values
+     */
+    void put(@NonNull final String key, @NonNull final List<String> values) {
+        final long now = System.currentTimeMillis();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(key, now, values);
+                    if (sizeBytes > maxSizeBytes) trim();
+                } catch (IOException ignore) {
+                    // Out of space or similar. Nothing we can do.
+                }
+            }
+        });
+    }
+
+    @WorkerThread
+    @Nullable
+    private Entry read(@NonNull Channel channel, @NonNull String key) throws IOException {
+        return read(getFile(key), channel, key, false);
+    }
+
+    /**
+     * Reads the given file, if its key is the given key, or starts with it if prefix is true.
+     */
+    @WorkerThread
+    @Nullable
+    private Entry read(@NonNull File file, @NonNull Channel channel,
+                       @NonNull String key, boolean prefix) throws IOException {
+        if (!file.exists()) return null;
+        DataInputStream stream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (stream.readInt() != MAGIC || stream.readByte() != VERSION) return null;
+            long timestamp = stream.readLong();
+            String fileKey = stream.readUTF();
+            if (prefix ? !fileKey.startsWith(key) : !key.equals(fileKey)) return null;
+
+            if (System.currentTimeMillis() > timestamp + channel.maxStaleMillis) return null;
+
+            int count = stream.readInt();
+            List<String> values = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                values.add(stream.readUTF());
+            }
+            return new Entry(timestamp, values, channel.maxAgeMillis);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @WorkerThread
+    private void write(@NonNull String key, long timestamp, @NonNull List<String> values)
+            throws IOException {
+        File file = getFile(key);
+        long oldLength = file.length(); // 0 if missing
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream stream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            stream.writeInt(MAGIC);
+            stream.writeByte(VERSION);
+            stream.writeLong(timestamp);
+            stream.writeUTF(key);
+            stream.writeInt(values.size());
+            for (String value : values) {
+                stream.writeUTF(value);
+            }
+        } finally {
+            stream.close();
+        }
+        // Rename is atomic, so readers never see a half-written file.
+        long size = getSizeBytes();
+        if (temp.renameTo(file)) {
+            sizeBytes = size - oldLength + file.length();
+        } else {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    /**
+     * @return the size of the directory, listing it only the first time
+     */
+    @WorkerThread
+    private long getSizeBytes() {
+        if (sizeBytes < 0) {
+            long size = 0;
+            File[] files = getDirectory().listFiles();
+            if (files != null) {
+                for (File file : files) size += file.length();
+            }
+            sizeBytes = size;
+        }
+        return sizeBytes;
+    }
+
+    /**
+     * Removes the least recently written files until we're below the trim target.
+     */
+    @WorkerThread
+    private void trim() {
+        File[] files = getDirectory().listFiles();
+        if (files == null) return;
+        long size = 0;
+        for (File file : files) size += file.length();
+        sizeBytes = size;
+        if (size <= maxSizeBytes) return;
+        long target = (long) (maxSizeBytes * TRIM_RATIO);
+
+        List<File> list = new ArrayList<>(Arrays.asList(files));
+        Collections.sort(list, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                long diff = first.lastModified() - second.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : list) {
+            if (size <= target) break;
+            long length = file.length();
+            if (file.delete()) size -= length;
+        }
+        sizeBytes = size;
+    }
+
+    @WorkerThread
+    @NonNull
+    private File getFile(@NonNull String key) {
+        return new File(getDirectory(), Integer.toHexString(key.hashCode()));
+    }
+
+    @WorkerThread
+    @NonNull
+    private File getDirectory() {
+        // Resolved lazily, because getCacheDir() touches the disk.
+        if (directory == null) {
+            directory = new File(context.getCacheDir(), DIRECTORY);
+            //noinspection ResultOfMethodCallIgnored
+            directory.mkdirs();
+        }
+        return directory;
+    }
+}
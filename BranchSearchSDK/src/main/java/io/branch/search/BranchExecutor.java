@@ -33,7 +33,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 class BranchExecutor implements Executor {
 
     private final static long KEEP_ALIVE_SECONDS = 5L;
-    private final static ThreadFactory FACTORY = new ThreadFactory() {
+    final static ThreadFactory FACTORY = new ThreadFactory() {
         private final AtomicInteger count = new AtomicInteger(1);
 
         @Override
@@ -0,0 +1,71 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when a search request should be hedged, see
+ * {@link BranchConfiguration#setSearchHedging(int, int)}.
+ * Round trip times come from the {@link BranchLatencyRecorder} of the channel.
+ *
+ * A hedge is a duplicate of a request that did not get a response after the given percentile
+ * of recent round trip times. It is sent on a separate connection, so that it does not wait
+ * behind a stalled one, and the first response wins. That connection is kept alive between
+ * hedges, so only the first one pays for a handshake. Since most requests are faster than the
+ * percentile, only the slow tail gets hedged, which is where hedging pays off.
+ *
+ * Hedges are also capped to a percentage of the requests, so that a slow network does not
+ * double our traffic.
+ */
+class BranchHedgingPolicy {
+
+    private static final int MIN_SAMPLES = 10;
+
+    private final int percentile;
+    private final int budgetPercent;
+    private final BranchLatencyRecorder latency;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong hedgeCount = new AtomicLong();
+
+    /**
+     * Creates a policy.
+     * @param percentile the round trip time percentile after which a request is hedged
+     * @param budgetPercent the maximum percentage of requests that can be hedged
+     * @param latency the round trip times of the channel
+     */
+    BranchHedgingPolicy(int percentile, int budgetPercent, @NonNull BranchLatencyRecorder latency) {
+        this.percentile = percentile;
+        this.budgetPercent = budgetPercent;
+        this.latency = latency;
+    }
+
+    /**
+     * Counts a new request and returns how long to wait before hedging it.
+     * @return the delay, or -1 if not enough requests were measured yet
+     */
+    long onRequest() {
+        requestCount.incrementAndGet();
+        return latency.getPercentile(percentile, MIN_SAMPLES);
+    }
+
+    /**
+     * Checks the budget before sending a hedge.
+     * @return true if the hedge can be sent
+     */
+    boolean tryHedge() {
+        while (true) {
+            long hedges = hedgeCount.get();
+            if ((hedges + 1) * 100 > budgetPercent * requestCount.get()) return false;
+            if (hedgeCount.compareAndSet(hedges, hedges + 1)) return true;
+        }
+    }
+
+    /**
+     * @return the number of hedges sent
+     */
+    long getHedgeCount() {
+        return hedgeCount.get();
+    }
+}
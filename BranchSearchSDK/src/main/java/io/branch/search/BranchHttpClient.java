@@ -0,0 +1,111 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+
+/**
+ * Holds the {@link OkHttpClient} instances used by the SDK.
+ *
+ * All clients are derived from a single base client through {@link OkHttpClient#newBuilder()},
+ * so they share the same {@link ConnectionPool} and dispatcher. This means that API calls on
+ * every channel and DeepView image loads can reuse the same warm connection to our servers,
+ * and that with HTTP/2 they are multiplexed over it: a session should need a single TLS
+ * handshake per host. The only exception is the hedge client, see {@link #getForHedging()}.
+ *
+ * The base client can be injected or tuned through {@link BranchConfiguration}, see
+ * {@link BranchConfiguration#setOkHttpClient(OkHttpClient)} and
+ * {@link BranchConfiguration#setConnectionPool(int, long)}.
+ *
+ * When metrics are enabled, the base client reports the network phases of SDK requests,
+ * see {@link BranchMetrics}.
+ */
+class BranchHttpClient {
+
+    static final long CALL_TIMEOUT_MILLIS = 6000;
+
+    private static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    private static final long DEFAULT_KEEP_ALIVE_MILLIS = 1000 * 60 * 5; // 5 minutes
+
+    private static OkHttpClient sClient;
+    private static OkHttpClient sApiClient;
+    private static OkHttpClient sHedgeClient;
+
+    /**
+     * Returns the base client. Used for requests that are not API calls, like images.
+     * @return the base client
+     */
+    @NonNull
+    static synchronized OkHttpClient get() {
+        if (sClient == null) {
+            configure(null, null);
+        }
+        return sClient;
+    }
+
+    /**
+     * Returns the client to be used for API calls. It shares everything with the base client,
+     * but has a call timeout and retries on connection failures.
+     * @return the API client
+     */
+    @NonNull
+    static synchronized OkHttpClient getForApi() {
+        if (sApiClient == null) {
+            sApiClient = get().newBuilder()
+                    .callTimeout(CALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                    .retryOnConnectionFailure(true)
+                    .build();
+        }
+        return sApiClient;
+    }
+
+    /**
+     * Returns the client to be used for hedged requests, see {@link BranchHedgingPolicy}.
+     * It is the API client with its own one-connection pool, so that a hedge does not reuse
+     * (or multiplex over) the connection that the original request is stuck on. The hedge
+     * connection is kept alive as long as the shared ones, so that later hedges find it warm.
+     * @return the hedge client
+     */
+    @NonNull
+    static synchronized OkHttpClient getForHedging() {
+        if (sHedgeClient == null) {
+            sHedgeClient = getForApi().newBuilder()
+                    .connectionPool(new ConnectionPool(1,
+                            DEFAULT_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS))
+                    .build();
+        }
+        return sHedgeClient;
+    }
+
+    /**
+     * Configures the base client. Requests that are already running are not affected.
+     * @param client a client to derive from, or null to use a new one
+     * @param pool a connection pool to use, or null to use the client pool (or a default one)
+     */
+    static synchronized void configure(@Nullable OkHttpClient client,
+                                       @Nullable ConnectionPool pool) {
+        OkHttpClient.Builder builder = client == null
+                ? new OkHttpClient.Builder()
+                : client.newBuilder();
+        if (pool != null) {
+            builder.connectionPool(pool);
+        } else if (client == null) {
+            builder.connectionPool(new ConnectionPool(DEFAULT_MAX_IDLE_CONNECTIONS,
+                    DEFAULT_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS));
+        }
+        // Protocols are left alone: the OkHttp default allows HTTP/2, and an injected client
+        // might have restricted them on purpose. HTTP/2 is negotiated through ALPN, which
+        // needs API 21+. Older devices will use HTTP/1.1.
+        if (BranchMetrics.isEnabled()) {
+            builder.eventListenerFactory(BranchMetrics.createEventListenerFactory(
+                    client == null ? null : client.eventListenerFactory()));
+        }
+        sClient = builder.build();
+        sApiClient = null;
+        sHedgeClient = null;
+    }
+}
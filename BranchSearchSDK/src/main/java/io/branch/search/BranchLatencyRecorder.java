@@ -0,0 +1,146 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free recorder for the round trip times of a channel.
+ *
+ * Values are counted in log-linear buckets, like an HDR histogram: values below 16 ms have
+ * their own bucket, and above that each power of two is split into 8 buckets, so percentiles
+ * are within 12.5% of the actual value. Values up to about 2 minutes are tracked, larger
+ * ones are counted in the last bucket.
+ *
+ * Percentiles are computed over a sliding window of {@link #SLOTS} slots of
+ * {@link #SLOT_MILLIS} each. Every slot has its own set of buckets in a single
+ * {@link AtomicLongArray}, and is cleared when it is reused for a newer time slot. Recording
+ * is a couple of atomic operations and never blocks, so it can be called from any thread.
+ * A value recorded while its slot is being cleared might be lost, which is fine for stats.
+ *
+ * The recorder also holds the last round trip time, which is reported to the server
+ * with the next request of the same channel, see {@link #takeLast()}.
+ */
+class BranchLatencyRecorder {
+
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 16; // Up to 2^17 ms, a bit more than 2 minutes
+    private static final int BUCKETS = LINEAR_BUCKETS + (MAX_EXPONENT - 3) * SUB_BUCKETS;
+
+    private static final int SLOTS = 5;
+    private static final long SLOT_MILLIS = 1000 * 60; // 1 minute
+
+    private final AtomicLongArray counts = new AtomicLongArray(SLOTS * BUCKETS);
+    private final AtomicLongArray slotTimes = new AtomicLongArray(SLOTS);
+    private final AtomicLong last = new AtomicLong(-1);
+
+    /**
+     * Records a round trip time.
+     * @param millis the round trip time
+     */
+    void record(long millis) {
+        if (millis < 0) return;
+        last.set(millis);
+        int slot = getSlot(System.currentTimeMillis() / SLOT_MILLIS);
+        counts.incrementAndGet(slot * BUCKETS + getBucket(millis));
+    }
+
+    /**
+     * Returns the last round trip time and clears it, so that it is only reported once.
+     * @return the last round trip time, or -1 if none
+     */
+    long takeLast() {
+        return last.getAndSet(-1);
+    }
+
+    /**
+     * Computes the stats of the sliding window.
+     * @return the stats
+     */
+    @NonNull
+    BranchLatencyStats getStats() {
+        long[] buckets = new long[BUCKETS];
+        long total = sumWindow(buckets);
+        return new BranchLatencyStats(total,
+                getPercentile(buckets, total, 50),
+                getPercentile(buckets, total, 90),
+                getPercentile(buckets, total, 99));
+    }
+
+    /**
+     * Computes a single percentile of the sliding window.
+     * @param percentile the percentile, for example 90
+     * @param minCount the minimum number of values needed
+     * @return the percentile, or -1 if there are not enough values
+     */
+    long getPercentile(int percentile, long minCount) {
+        long[] buckets = new long[BUCKETS];
+        long total = sumWindow(buckets);
+        if (total < minCount) return -1;
+        return getPercentile(buckets, total, percentile);
+    }
+
+    /**
+     * Sums the counts of the slots in the window into the given buckets.
+     * @return the total count
+     */
+    private long sumWindow(@NonNull long[] buckets) {
+        long total = 0;
+        long now = System.currentTimeMillis() / SLOT_MILLIS;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            long time = slotTimes.get(slot);
+            if (time <= now - SLOTS || time > now) continue;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                long count = counts.get(slot * BUCKETS + bucket);
+                buckets[bucket] += count;
+                total += count;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns the slot index for the given time, clearing it if it holds an older time.
+     */
+    private int getSlot(long time) {
+        int slot = (int) (time % SLOTS);
+        long slotTime = slotTimes.get(slot);
+        if (slotTime != time && slotTimes.compareAndSet(slot, slotTime, time)) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                counts.set(slot * BUCKETS + bucket, 0);
+            }
+        }
+        return slot;
+    }
+
+    private static long getPercentile(@NonNull long[] buckets, long total, int percentile) {
+        if (total == 0) return -1;
+        long rank = (long) Math.ceil(percentile / 100.0 * total);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += buckets[bucket];
+            if (seen >= rank) return getBucketMax(bucket);
+        }
+        return getBucketMax(BUCKETS - 1);
+    }
+
+    private static int getBucket(long millis) {
+        if (millis < LINEAR_BUCKETS) return (int) millis;
+        int exponent = 63 - Long.numberOfLeadingZeros(millis); // At least 4
+        if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (millis >> shift) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long getBucketMax(int bucket) {
+        if (bucket < LINEAR_BUCKETS) return bucket;
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,64 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Round trip time statistics of a request channel, over the last few minutes.
+ * See {@link BranchSearch#getSearchLatencyStats()}.
+ *
+ * Percentiles are approximate: they are rounded up to the histogram bucket they fall in,
+ * which is within 12.5% of the actual value.
+ */
+@SuppressWarnings("WeakerAccess")
+public class BranchLatencyStats {
+    private final long count;
+    private final long p50Millis;
+    private final long p90Millis;
+    private final long p99Millis;
+
+    BranchLatencyStats(long count, long p50Millis, long p90Millis, long p99Millis) {
+        this.count = count;
+        this.p50Millis = p50Millis;
+        this.p90Millis = p90Millis;
+        this.p99Millis = p99Millis;
+    }
+
+    /**
+     * @return the number of requests measured
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the median round trip time in milliseconds, or -1 if no request was measured
+     */
+    public long getP50Millis() {
+        return p50Millis;
+    }
+
+    /**
+     * @return the 90th percentile of round trip times in milliseconds, or -1 if no
+     * request was measured
+     */
+    public long getP90Millis() {
+        return p90Millis;
+    }
+
+    /**
+     * @return the 99th percentile of round trip times in milliseconds, or -1 if no
+     * request was measured
+     */
+    public long getP99Millis() {
+        return p99Millis;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "count=%d p50=%dms p90=%dms p99=%dms",
+                count, p50Millis, p90Millis, p99Millis);
+    }
+}
@@ -14,13 +14,16 @@ import android.support.v4.app.DialogFragment;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.text.TextUtils;
+import android.util.JsonReader;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.Iterator;
+import java.util.Set;
 
 /**
  * Class for representing a a deep link to content
@@ -211,14 +214,13 @@ public class BranchLinkResult implements Parcelable {
 
     /**
      * This method allows you to register a click event on the action, which informs Branch
-     * which item was clicked, improving the rankings and personalization over time
+     * which item was clicked, improving the rankings and personalization over time.
+     * Events are queued and sent in background, even if the app is restarted in the meantime.
      */
     public void registerClickEvent() {
-        if (!TextUtils.isEmpty(click_tracking_url)) {
-            // Fire off an async click event
-            BranchSearch.getInstance()
-                    .getNetworkHandler(BranchSearch.Channel.SEARCH)
-                    .executeGet(click_tracking_url, null);
+        BranchSearch search = BranchSearch.getInstance();
+        if (search != null && !TextUtils.isEmpty(click_tracking_url)) {
+            search.getClickTracker().track(click_tracking_url);
         }
     }
 
@@ -420,14 +422,14 @@ public class BranchLinkResult implements Parcelable {
         return Util.openAppInPlayStore(context, destination_store_id);
     }
 
-    @SuppressLint("NewApi")
-    @Nullable
-    static BranchLinkResult createFromJson(@NonNull JSONObject json,
-                                           @NonNull String appName,
-                                           @NonNull String appPackageName,
-                                           @NonNull String appIconUrl,
-                                           @NonNull String appDeepviewExtraText,
-                                           boolean appIsInstalled) {
+    /**
+     * Parses the link fields from the given JSON object. The result is not usable
+     * until {@link #bindToApp(String, String, String, String, boolean, Set)} is called.
+     * @param json json object
+     * @return a new link
+     */
+    @NonNull
+    static BranchLinkResult createFromJson(@NonNull JSONObject json) {
         BranchLinkResult link = new BranchLinkResult();
         link.entity_id = Util.optString(json, LINK_ENTITY_ID_KEY);
         link.type = Util.optString(json, LINK_TYPE_KEY);
@@ -436,8 +438,6 @@ public class BranchLinkResult implements Parcelable {
         link.name = Util.optString(json, LINK_NAME_KEY);
         link.description = Util.optString(json, LINK_DESC_KEY);
         link.image_url = Util.optString(json, LINK_IMAGE_URL_KEY);
-        link.app_name = appName;
-        link.app_icon_url = appIconUrl;
         link.ranking_hint = Util.optString(json, LINK_RANKING_HINT_KEY);
         link.metadata = json.optJSONObject(LINK_METADATA_KEY);
         if (link.metadata == null) link.metadata = new JSONObject();
@@ -445,37 +445,104 @@ public class BranchLinkResult implements Parcelable {
         link.routing_mode = Util.optString(json, LINK_ROUTING_MODE_KEY);
         link.uri_scheme = Util.optString(json, LINK_URI_SCHEME_KEY);
         link.web_link = Util.optString(json, LINK_WEB_LINK_KEY);
-        link.destination_store_id = appPackageName;
 
         link.click_tracking_url = Util.optString(json, LINK_TRACKING_KEY);
         link.android_shortcut_id = Util.optString(json, LINK_ANDROID_SHORTCUT_ID_KEY);
         link.icon_category = json.optString(LINK_ICON_CATEGORY, ICON_CATEGORY_OTHER);
-        link.deepview_extra_text = json.optString(LINK_DEEPVIEW_EXTRA_TEXT_KEY,
-                appDeepviewExtraText);
+        if (json.has(LINK_DEEPVIEW_EXTRA_TEXT_KEY)) {
+            link.deepview_extra_text = json.optString(LINK_DEEPVIEW_EXTRA_TEXT_KEY);
+        }
+        return link;
+    }
+
+    /**
+     * Parses the link fields from the given reader, which should be positioned
+     * before the link object. The result is not usable until
+     * {@link #bindToApp(String, String, String, String, boolean, Set)} is called.
+     * @param reader a reader
+     * @return a new link
+     * @throws IOException if reading fails
+     */
+    @NonNull
+    static BranchLinkResult createFromJson(@NonNull JsonReader reader) throws IOException {
+        BranchLinkResult link = new BranchLinkResult();
+        link.score = Float.NaN;
+        link.icon_category = ICON_CATEGORY_OTHER;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case LINK_ENTITY_ID_KEY: link.entity_id = Util.nextString(reader, ""); break;
+                case LINK_TYPE_KEY: link.type = Util.nextString(reader, ""); break;
+                case LINK_SCORE_KEY: link.score = (float) Util.nextDouble(reader, Double.NaN); break;
+                case LINK_NAME_KEY: link.name = Util.nextString(reader, ""); break;
+                case LINK_DESC_KEY: link.description = Util.nextString(reader, ""); break;
+                case LINK_IMAGE_URL_KEY: link.image_url = Util.nextString(reader, ""); break;
+                case LINK_RANKING_HINT_KEY: link.ranking_hint = Util.nextString(reader, ""); break;
+                case LINK_METADATA_KEY: link.metadata = Util.nextJSONObject(reader); break;
+                case LINK_ROUTING_MODE_KEY: link.routing_mode = Util.nextString(reader, ""); break;
+                case LINK_URI_SCHEME_KEY: link.uri_scheme = Util.nextString(reader, ""); break;
+                case LINK_WEB_LINK_KEY: link.web_link = Util.nextString(reader, ""); break;
+                case LINK_TRACKING_KEY: link.click_tracking_url = Util.nextString(reader, ""); break;
+                case LINK_ANDROID_SHORTCUT_ID_KEY: link.android_shortcut_id = Util.nextString(reader, ""); break;
+                case LINK_ICON_CATEGORY: link.icon_category = Util.nextString(reader, ICON_CATEGORY_OTHER); break;
+                case LINK_DEEPVIEW_EXTRA_TEXT_KEY: link.deepview_extra_text = Util.nextString(reader, ""); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        // Same defaults as Util.optString().
+        if (link.entity_id == null) link.entity_id = "";
+        if (link.type == null) link.type = "";
+        if (link.name == null) link.name = "";
+        if (link.description == null) link.description = "";
+        if (link.image_url == null) link.image_url = "";
+        if (link.ranking_hint == null) link.ranking_hint = "";
+        if (link.metadata == null) link.metadata = new JSONObject();
+        if (link.routing_mode == null) link.routing_mode = "";
+        if (link.uri_scheme == null) link.uri_scheme = "";
+        if (link.web_link == null) link.web_link = "";
+        if (link.click_tracking_url == null) link.click_tracking_url = "";
+        if (link.android_shortcut_id == null) link.android_shortcut_id = "";
+        return link;
+    }
+
+    /**
+     * Binds this link to its parent app, then checks whether it should be displayed.
+     * @param appName app name
+     * @param appPackageName app package name
+     * @param appIconUrl app icon url
+     * @param appDeepviewExtraText app-level deepview text, used if the link has none
+     * @param appIsInstalled whether the app is installed
+     * @param validShortcutIds the valid shortcut ids for this app
+     * @return true if this link is valid and should be kept, false otherwise
+     */
+    boolean bindToApp(@NonNull String appName,
+                      @NonNull String appPackageName,
+                      @NonNull String appIconUrl,
+                      @NonNull String appDeepviewExtraText,
+                      boolean appIsInstalled,
+                      @NonNull Set<String> validShortcutIds) {
+        app_name = appName;
+        app_icon_url = appIconUrl;
+        destination_store_id = appPackageName;
+        if (deepview_extra_text == null) deepview_extra_text = appDeepviewExtraText;
 
         // Now that we have parsed the JSON, filter ourselves out if needed.
         // Remove invalid shortcuts
-        String shortcutId = link.getAndroidShortcutId();
-        if (shortcutId != null) { // Need to validate
-            Context context = BranchSearch.getInstance().getApplicationContext();
-            IBranchShortcutHandler handler = BranchSearch.getInstance()
-                    .getBranchConfiguration()
-                    .getShortcutHandler();
-            if (!handler.validateShortcut(context, shortcutId, appPackageName)) {
-                return null;
-            }
+        String shortcutId = getAndroidShortcutId();
+        if (shortcutId != null && !validShortcutIds.contains(shortcutId)) {
+            return false;
         }
         // If app not installed, remove non http(s)/android-app.
         if (!appIsInstalled) {
-            boolean isWeb = !TextUtils.isEmpty(link.web_link);
-            boolean isPlayStore = link.getUriScheme() != null
-                    && link.getUriScheme().startsWith("android-app://");
+            boolean isWeb = !TextUtils.isEmpty(web_link);
+            boolean isPlayStore = getUriScheme() != null
+                    && getUriScheme().startsWith("android-app://");
             if (!isWeb && !isPlayStore) {
-                return null;
+                return false;
             }
         }
-
-        return link;
+        return true;
     }
 
     @Override
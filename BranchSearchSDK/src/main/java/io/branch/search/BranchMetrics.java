@@ -0,0 +1,204 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+
+/**
+ * Reports metrics to the {@link IBranchMetricsListener} of the configuration, if any.
+ *
+ * Request timelines are only created when a listener is set, see {@link #isEnabled()}, and the
+ * OkHttp {@link EventListener} that fills their network phases is only installed in that case,
+ * so metrics cost a volatile read when disabled.
+ *
+ * The timeline of a request travels with it: as an OkHttp request tag for the network phases,
+ * and in a thread local while the response is parsed, so that the apps submitted to the
+ * {@link BranchResultProcessor} can be measured, see {@link #getCurrentTimeline()}.
+ */
+class BranchMetrics {
+
+    @Nullable private static volatile IBranchMetricsListener sListener;
+    private static final ThreadLocal<BranchRequestTimeline> sCurrentTimeline = new ThreadLocal<>();
+
+    /**
+     * Sets the listener. Must be called before any request is made.
+     * @param listener the listener, or null to disable metrics
+     */
+    static void setListener(@Nullable IBranchMetricsListener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * @return true if a listener is set
+     */
+    static boolean isEnabled() {
+        return sListener != null;
+    }
+
+    /**
+     * Increments a counter.
+     * @param counter a counter
+     */
+    static void count(@NonNull IBranchMetricsListener.Counter counter) {
+        IBranchMetricsListener listener = sListener;
+        if (listener != null) listener.onCounter(counter);
+    }
+
+    /**
+     * Reports a completed request.
+     * @param timeline the request timeline
+     */
+    static void report(@NonNull BranchRequestTimeline timeline) {
+        IBranchMetricsListener listener = sListener;
+        if (listener != null) listener.onRequestCompleted(timeline);
+    }
+
+    /**
+     * Sets the timeline of the response being parsed on this thread.
+     * @param timeline a timeline, or null when done
+     */
+    static void setCurrentTimeline(@Nullable BranchRequestTimeline timeline) {
+        sCurrentTimeline.set(timeline);
+    }
+
+    /**
+     * @return the timeline of the response being parsed on this thread, if any
+     */
+    @Nullable
+    static BranchRequestTimeline getCurrentTimeline() {
+        return sListener == null ? null : sCurrentTimeline.get();
+    }
+
+    /**
+     * Creates the event listener factory for the base client. Calls of the SDK requests, which
+     * are tagged with their timeline, get a listener that fills it. Other calls go to the
+     * factory of the client that was injected, if any.
+     * @param delegate the factory of the injected client, or null
+     * @return a factory
+     */
+    @NonNull
+    static EventListener.Factory createEventListenerFactory(
+            @Nullable final EventListener.Factory delegate) {
+        return new EventListener.Factory() {
+            @NonNull
+            @Override
+            public EventListener create(@NonNull Call call) {
+                BranchRequestTimeline timeline = call.request().tag(BranchRequestTimeline.class);
+                if (timeline != null) return new TimelineListener(timeline);
+                return delegate == null ? EventListener.NONE : delegate.create(call);
+            }
+        };
+    }
+
+    /**
+     * Fills the network phases of a single call. Retried and hedged calls of a request share
+     * its timeline, and a hedge runs at the same time as the original call, so the phase starts
+     * are kept here, per call, and only the durations are added to the timeline.
+     */
+    private static class TimelineListener extends EventListener {
+        private final BranchRequestTimeline timeline;
+        // Events of a call are delivered in sequence, see EventListener.
+        private final long[] starts = new long[BranchRequestTimeline.Phase.values().length];
+
+        private TimelineListener(@NonNull BranchRequestTimeline timeline) {
+            this.timeline = timeline;
+        }
+
+        private void start(@NonNull BranchRequestTimeline.Phase phase) {
+            starts[phase.ordinal()] = System.nanoTime();
+        }
+
+        private void end(@NonNull BranchRequestTimeline.Phase phase) {
+            long start = starts[phase.ordinal()];
+            if (start == 0) return;
+            starts[phase.ordinal()] = 0;
+            timeline.add(phase, System.nanoTime() - start);
+        }
+
+        @Override
+        public void dnsStart(@NonNull Call call, @NonNull String domainName) {
+            start(BranchRequestTimeline.Phase.DNS);
+        }
+
+        @Override
+        public void dnsEnd(@NonNull Call call, @NonNull String domainName,
+                           @NonNull List<InetAddress> addresses) {
+            end(BranchRequestTimeline.Phase.DNS);
+        }
+
+        @Override
+        public void connectStart(@NonNull Call call, @NonNull InetSocketAddress address,
+                                 @NonNull Proxy proxy) {
+            start(BranchRequestTimeline.Phase.CONNECT);
+        }
+
+        @Override
+        public void secureConnectStart(@NonNull Call call) {
+            start(BranchRequestTimeline.Phase.TLS);
+        }
+
+        @Override
+        public void secureConnectEnd(@NonNull Call call, @Nullable Handshake handshake) {
+            end(BranchRequestTimeline.Phase.TLS);
+        }
+
+        @Override
+        public void connectEnd(@NonNull Call call, @NonNull InetSocketAddress address,
+                               @NonNull Proxy proxy, @Nullable Protocol protocol) {
+            end(BranchRequestTimeline.Phase.CONNECT);
+        }
+
+        @Override
+        public void connectFailed(@NonNull Call call, @NonNull InetSocketAddress address,
+                                  @NonNull Proxy proxy, @Nullable Protocol protocol,
+                                  @NonNull IOException e) {
+            end(BranchRequestTimeline.Phase.CONNECT);
+        }
+
+        @Override
+        public void requestHeadersStart(@NonNull Call call) {
+            start(BranchRequestTimeline.Phase.REQUEST);
+        }
+
+        @Override
+        public void requestHeadersEnd(@NonNull Call call, @NonNull Request request) {
+            if (request.body() == null) onRequestSent();
+        }
+
+        @Override
+        public void requestBodyEnd(@NonNull Call call, long byteCount) {
+            onRequestSent();
+        }
+
+        private void onRequestSent() {
+            end(BranchRequestTimeline.Phase.REQUEST);
+            start(BranchRequestTimeline.Phase.SERVER);
+        }
+
+        @Override
+        public void responseHeadersStart(@NonNull Call call) {
+            end(BranchRequestTimeline.Phase.SERVER);
+        }
+
+        @Override
+        public void responseBodyStart(@NonNull Call call) {
+            start(BranchRequestTimeline.Phase.RESPONSE);
+        }
+
+        @Override
+        public void responseBodyEnd(@NonNull Call call, long byteCount) {
+            end(BranchRequestTimeline.Phase.RESPONSE);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package io.branch.search;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * In-memory index of the installed packages.
+ *
+ * The index is built once in background with a single {@link android.content.pm.PackageManager}
+ * call, then kept up to date by listening to {@link Intent#ACTION_PACKAGE_ADDED} and
+ * {@link Intent#ACTION_PACKAGE_REMOVED} broadcasts. Once ready, lookups are a set lookup with no
+ * binder call, so they are cheap enough for result processing and click routing.
+ *
+ * Both the initial build and the broadcast updates run on the same single thread, so they
+ * are applied in order. Lookups read an immutable snapshot that is replaced on each change.
+ * A {@link Listener} can be notified of the broadcasts, for example to drop results that
+ * depend on which apps are installed.
+ */
+class BranchPackageIndex {
+
+    /**
+     * Notified on a background thread when a package is added or removed.
+     */
+    interface Listener {
+        void onPackagesChanged();
+    }
+
+    private static BranchPackageIndex sInstance;
+
+    private final BranchExecutor executor = new BranchExecutor(1);
+    private final Context context;
+    @Nullable private volatile Set<String> packages;
+    @Nullable private volatile Listener listener;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, final Intent intent) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onPackageChanged(intent);
+                    Listener current = listener;
+                    if (current != null) current.onPackagesChanged();
+                }
+            });
+        }
+    };
+
+    /**
+     * Returns the index, creating it if needed.
+     * @param context a context
+     * @return the index
+     */
+    @NonNull
+    static synchronized BranchPackageIndex getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new BranchPackageIndex(context);
+        }
+        return sInstance;
+    }
+
+    private BranchPackageIndex(@NonNull Context context) {
+        this.context = context.getApplicationContext();
+        // Register first, so that no change is lost while we build.
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        this.context.registerReceiver(receiver, filter);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                build();
+            }
+        });
+    }
+
+    /**
+     * Sets the listener, replacing the previous one.
+     * @param listener a listener, or null to remove it
+     */
+    void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Checks whether the given package is installed.
+     * @param packageName a package name
+     * @return true or false, or null if the index is not ready yet
+     */
+    @Nullable
+    Boolean isInstalled(@NonNull String packageName) {
+        Set<String> snapshot = packages;
+        return snapshot == null ? null : snapshot.contains(packageName);
+    }
+
+    @WorkerThread
+    private void build() {
+        Set<String> set = new HashSet<>();
+        try {
+            List<PackageInfo> infos = context.getPackageManager().getInstalledPackages(0);
+            for (PackageInfo info : infos) {
+                set.add(info.packageName);
+            }
+        } catch (RuntimeException e) {
+            // The list is too big for a binder transaction on some old devices.
+            // Leave the index empty so we keep querying each package.
+            return;
+        }
+        packages = set;
+    }
+
+    @WorkerThread
+    private void onPackageChanged(@NonNull Intent intent) {
+        Set<String> snapshot = packages;
+        Uri data = intent.getData();
+        if (snapshot == null || data == null) return;
+        String packageName = data.getSchemeSpecificPart();
+        if (packageName == null) return;
+
+        Set<String> set = new HashSet<>(snapshot);
+        if (Intent.ACTION_PACKAGE_ADDED.equals(intent.getAction())) {
+            set.add(packageName);
+        } else if (!intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+            // When updating, REMOVED is followed by ADDED. Ignore it.
+            set.remove(packageName);
+        }
+        packages = set;
+    }
+}
@@ -0,0 +1,156 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+import okio.Buffer;
+
+/**
+ * The payload of a POST request to our servers.
+ *
+ * Most of the payload is made of device and configuration values (brand, model, carrier,
+ * branch key, GAID...) that only change when {@link BranchDeviceInfo} or
+ * {@link BranchConfiguration} are synced or modified. These values are serialized once into
+ * a shared UTF-8 fragment, which is spliced into each request body by {@link BranchRequestBody}.
+ * Only the per-request values (query, timestamp, location, extras) live in {@link #json}
+ * and are serialized for each request.
+ *
+ * The fragment is cached in a volatile field along with the versions it was built from,
+ * so the fast path does not take any lock.
+ */
+class BranchPayload {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private static volatile Fragment sFragment;
+
+    private static class Fragment {
+        private final BranchDeviceInfo info;
+        private final BranchConfiguration configuration;
+        private final int infoVersion;
+        private final int configurationVersion;
+        private final byte[] bytes;
+
+        private Fragment(@NonNull BranchDeviceInfo info,
+                         @NonNull BranchConfiguration configuration,
+                         int infoVersion,
+                         int configurationVersion,
+                         @NonNull byte[] bytes) {
+            this.info = info;
+            this.configuration = configuration;
+            this.infoVersion = infoVersion;
+            this.configurationVersion = configurationVersion;
+            this.bytes = bytes;
+        }
+    }
+
+    /** The per-request values. */
+    final JSONObject json;
+
+    /** The static values, serialized as {@code "key":value} pairs without braces. */
+    private final byte[] fragment;
+
+    /** When the payload creation started and how long it took, if metrics are enabled. */
+    final long startNanos;
+    final long buildNanos;
+
+    private BranchPayload(@NonNull JSONObject json, @NonNull byte[] fragment,
+                          long startNanos, long buildNanos) {
+        this.json = json;
+        this.fragment = fragment;
+        this.startNanos = startNanos;
+        this.buildNanos = buildNanos;
+    }
+
+    /**
+     * Creates the payload for the given request.
+     * @param request a request
+     * @param configuration the configuration
+     * @param info the device info
+     * @return a payload
+     */
+    @NonNull
+    static BranchPayload create(@NonNull BranchDiscoveryRequest<?> request,
+                                @NonNull BranchConfiguration configuration,
+                                @NonNull BranchDeviceInfo info) {
+        long start = BranchMetrics.isEnabled() ? System.nanoTime() : 0;
+        info.syncIfNeeded();
+        configuration.syncIfNeeded();
+        JSONObject json = request.toJson();
+        info.addDynamicDeviceInfo(json);
+        configuration.addDynamicConfigurationInfo(json);
+        byte[] fragment = getFragment(configuration, info);
+        long build = start == 0 ? 0 : System.nanoTime() - start;
+        return new BranchPayload(json, fragment, start, build);
+    }
+
+    @NonNull
+    private static byte[] getFragment(@NonNull BranchConfiguration configuration,
+                                      @NonNull BranchDeviceInfo info) {
+        // Read the versions first: if they change while we build, the next call rebuilds.
+        int infoVersion = info.getVersion();
+        int configurationVersion = configuration.getVersion();
+        Fragment fragment = sFragment;
+        if (fragment != null
+                && fragment.info == info
+                && fragment.configuration == configuration
+                && fragment.infoVersion == infoVersion
+                && fragment.configurationVersion == configurationVersion) {
+            return fragment.bytes;
+        }
+
+        // Device first, so that the configuration can override the locale.
+        JSONObject json = new JSONObject();
+        info.addStaticDeviceInfo(json);
+        configuration.addStaticConfigurationInfo(json);
+        byte[] bytes;
+        try {
+            Buffer buffer = BranchRequestBody.serialize(json);
+            // Strip the braces.
+            buffer.skip(1);
+            bytes = buffer.size() > 1 ? buffer.readByteArray(buffer.size() - 1) : EMPTY;
+        } catch (IOException e) {
+            // Can't happen with an in-memory buffer.
+            bytes = EMPTY;
+        }
+        sFragment = new Fragment(info, configuration, infoVersion, configurationVersion, bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes the whole payload as a JSON object into the given buffer.
+     * @param buffer a buffer
+     * @throws IOException if serialization fails
+     */
+    void writeTo(@NonNull Buffer buffer) throws IOException {
+        Buffer dynamic = BranchRequestBody.serialize(json);
+        if (fragment.length == 0) {
+            buffer.writeAll(dynamic);
+            return;
+        }
+        // Move everything but the closing brace, then append the fragment.
+        long size = dynamic.size();
+        buffer.write(dynamic, size - 1);
+        if (size > 2) buffer.writeByte(',');
+        buffer.write(fragment);
+        buffer.writeByte('}');
+    }
+
+    /**
+     * @return the whole payload as a JSON string
+     */
+    @NonNull
+    @Override
+    public String toString() {
+        Buffer buffer = new Buffer();
+        try {
+            writeTo(buffer);
+        } catch (IOException e) {
+            return json.toString();
+        }
+        return buffer.readUtf8();
+    }
+}
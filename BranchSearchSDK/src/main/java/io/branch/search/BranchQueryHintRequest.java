@@ -36,6 +36,10 @@ public class BranchQueryHintRequest extends BranchDiscoveryRequest<BranchQueryHi
         return this;
     }
 
+    int getMaxResults() {
+        return maxResults;
+    }
+
     @NonNull
     @Override
     JSONObject toJson() {
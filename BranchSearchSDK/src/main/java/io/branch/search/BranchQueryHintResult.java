@@ -43,6 +43,24 @@ public class BranchQueryHintResult implements Parcelable {
         return new BranchQueryHintResult(hints);
     }
 
+    @NonNull
+    static BranchQueryHintResult createFromQueries(@NonNull List<String> queries) {
+        List<BranchQueryHint> hints = new ArrayList<>(queries.size());
+        for (String query : queries) {
+            hints.add(new BranchQueryHint(query));
+        }
+        return new BranchQueryHintResult(hints);
+    }
+
+    @NonNull
+    List<String> getQueries() {
+        List<String> queries = new ArrayList<>(hints.size());
+        for (BranchQueryHint hint : hints) {
+            queries.add(hint.getQuery());
+        }
+        return queries;
+    }
+
     @Override
     public int describeContents() {
         return 0;
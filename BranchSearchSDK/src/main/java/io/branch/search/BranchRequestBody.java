@@ -0,0 +1,190 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Base64;
+import android.util.Base64OutputStream;
+import android.util.JsonWriter;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+
+/**
+ * A JSON {@link RequestBody} that writes the payload directly into the OkHttp sink.
+ *
+ * The payload is serialized once, into an okio {@link Buffer} (whose segments are pooled),
+ * instead of going through {@link JSONObject#toString()}. Its static part is copied from a
+ * cached fragment, see {@link BranchPayload}.
+ *
+ * For encrypted channels, the body is the envelope {@code {"data":"<base64>","iv":"<iv>"}}:
+ * the serialized payload is streamed through a {@link CipherOutputStream} and a
+ * {@link Base64OutputStream} into the sink, so neither the cipher text nor its Base64
+ * encoding are ever held in memory as a whole.
+ *
+ * Since the cipher text length only depends on the payload length, {@link #contentLength()}
+ * is known in advance. The body can be written more than once, for example on retries.
+ */
+class BranchRequestBody extends RequestBody {
+
+    private static final MediaType POST_JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final int AES_BLOCK_SIZE = 16;
+
+    private static final String ENVELOPE_START = "{\"" + Branchcryption.jsonKeyData + "\":\"";
+    private static final String ENVELOPE_MIDDLE = "\",\"" + Branchcryption.jsonKeyIV + "\":\"";
+    private static final String ENVELOPE_END = "\"}";
+
+    private final Buffer payload;
+    @Nullable private final String iv;
+
+    /**
+     * Creates a plain JSON body.
+     * @param payload the payload
+     * @return a body
+     * @throws IOException if the payload can't be serialized
+     */
+    @NonNull
+    static BranchRequestBody create(@NonNull BranchPayload payload) throws IOException {
+        Buffer buffer = new Buffer();
+        payload.writeTo(buffer);
+        return new BranchRequestBody(buffer, null);
+    }
+
+    /**
+     * Creates an encrypted JSON body.
+     * @param payload the payload
+     * @param iv the encryption IV, which is also sent in the body
+     * @return a body
+     * @throws IOException if the payload can't be serialized
+     * @throws GeneralSecurityException if encryption is not available
+     */
+    @NonNull
+    static BranchRequestBody createEncrypted(@NonNull BranchPayload payload, @NonNull String iv)
+            throws IOException, GeneralSecurityException {
+        // Fail now rather than in writeTo(), so that callers can fall back to a plain body.
+        Branchcryption.getEncryptionCipher(iv);
+        Buffer buffer = new Buffer();
+        payload.writeTo(buffer);
+        return new BranchRequestBody(buffer, iv);
+    }
+
+    private BranchRequestBody(@NonNull Buffer payload, @Nullable String iv) {
+        this.payload = payload;
+        this.iv = iv;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return POST_JSON;
+    }
+
+    @Override
+    public long contentLength() {
+        if (iv == null) return payload.size();
+        long cipherLength = (payload.size() / AES_BLOCK_SIZE + 1) * AES_BLOCK_SIZE; // PKCS5
+        long base64Length = (cipherLength + 2) / 3 * 4;
+        return ENVELOPE_START.length() + base64Length + ENVELOPE_MIDDLE.length()
+                + iv.length() + ENVELOPE_END.length();
+    }
+
+    @Override
+    public void writeTo(@NonNull BufferedSink sink) throws IOException {
+        if (iv == null) {
+            // Shares the segments with the sink buffer, without copying.
+            payload.copyTo(sink.buffer(), 0, payload.size());
+            sink.emitCompleteSegments();
+            return;
+        }
+        Cipher cipher;
+        try {
+            cipher = Branchcryption.getEncryptionCipher(iv);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        sink.writeUtf8(ENVELOPE_START);
+        boolean traced = BranchTrace.begin("Branchcryption.encrypt");
+        try {
+            OutputStream base64 = new Base64OutputStream(sink.outputStream(),
+                    Base64.NO_WRAP | Base64.NO_CLOSE);
+            OutputStream stream = new CipherOutputStream(base64, cipher);
+            payload.copyTo(stream, 0, payload.size());
+            stream.close(); // Writes the final block and the Base64 padding.
+        } finally {
+            BranchTrace.end(traced);
+        }
+        sink.writeUtf8(ENVELOPE_MIDDLE);
+        sink.writeUtf8(iv);
+        sink.writeUtf8(ENVELOPE_END);
+    }
+
+    /**
+     * Serializes the given object into a new buffer.
+     * @param payload an object
+     * @return a buffer holding the UTF-8 JSON
+     * @throws IOException if serialization fails
+     */
+    @NonNull
+    static Buffer serialize(@NonNull JSONObject payload) throws IOException {
+        Buffer buffer = new Buffer();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(buffer.outputStream(), "UTF-8"));
+        try {
+            write(writer, payload);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        writer.flush();
+        return buffer;
+    }
+
+    private static void write(@NonNull JsonWriter writer, @Nullable Object value)
+            throws IOException, JSONException {
+        if (value == null || value == JSONObject.NULL) {
+            writer.nullValue();
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            writer.beginObject();
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                writer.name(key);
+                write(writer, object.get(key));
+            }
+            writer.endObject();
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            writer.beginArray();
+            for (int i = 0; i < array.length(); i++) {
+                write(writer, array.get(i));
+            }
+            writer.endArray();
+        } else if (value instanceof Boolean) {
+            writer.value((Boolean) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            // Like JSONObject.toString(), drop the fraction of integral values.
+            double number = ((Number) value).doubleValue();
+            if (number == (long) number) {
+                writer.value((long) number);
+            } else {
+                writer.value(number);
+            }
+        } else if (value instanceof Number) {
+            writer.value(((Number) value).longValue());
+        } else {
+            writer.value(value.toString());
+        }
+    }
+}
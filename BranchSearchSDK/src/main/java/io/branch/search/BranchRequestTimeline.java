@@ -0,0 +1,171 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The timeline of a single request, from payload creation to result delivery.
+ * See {@link IBranchMetricsListener#onRequestCompleted(BranchRequestTimeline)}.
+ *
+ * Each {@link Phase} holds the total time spent in it. Phases can overlap (for example, a
+ * streamed response is parsed while it is read from the network) and some time is spent
+ * outside of any phase (debounce windows, UI thread hops), so phases do not add up to
+ * {@link #getTotalNanos()}. When a request was retried or hedged, see {@link #getCallCount()},
+ * the network phases of all calls are summed.
+ */
+@SuppressWarnings("WeakerAccess")
+public class BranchRequestTimeline {
+
+    /**
+     * The phases of a request.
+     */
+    public enum Phase {
+        /** Building the payload, including device info and configuration. */
+        PAYLOAD,
+        /** Waiting for an executor thread. */
+        QUEUE,
+        /** Serializing the payload and preparing its encryption. */
+        BUILD,
+        /** DNS lookup. */
+        DNS,
+        /** Connecting, including the TLS handshake. */
+        CONNECT,
+        /** TLS handshake. */
+        TLS,
+        /** Writing the request. The payload is encrypted while it is written. */
+        REQUEST,
+        /** Waiting for the response after the request was written. */
+        SERVER,
+        /** Reading the response body. */
+        RESPONSE,
+        /** Decrypting the response. */
+        DECRYPTION,
+        /** Parsing the response. */
+        PARSE,
+        /** Checking installed apps and validating shortcuts, summed over all apps. */
+        PROCESSING
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final String url;
+    private final long startNanos;
+    private final AtomicLongArray starts = new AtomicLongArray(PHASES.length);
+    private final AtomicLongArray durations = new AtomicLongArray(PHASES.length);
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile long totalNanos = -1;
+    @Nullable private volatile BranchSearchError.ERR_CODE errorCode;
+
+    BranchRequestTimeline(@NonNull String url, long startNanos) {
+        this.url = url;
+        this.startNanos = startNanos;
+        for (int i = 0; i < PHASES.length; i++) {
+            durations.set(i, -1);
+        }
+    }
+
+    /**
+     * Marks the start of a phase. Only for phases that happen once at a time in a request:
+     * the network phases of each call are measured by the call, see {@link BranchMetrics}.
+     * @param phase a phase
+     */
+    void start(@NonNull Phase phase) {
+        starts.set(phase.ordinal(), System.nanoTime());
+    }
+
+    /**
+     * Marks the end of a phase, if it was started.
+     * @param phase a phase
+     */
+    void end(@NonNull Phase phase) {
+        long start = starts.getAndSet(phase.ordinal(), 0);
+        if (start != 0) add(phase, System.nanoTime() - start);
+    }
+
+    /**
+     * Adds time to a phase.
+     * @param phase a phase
+     * @param nanos the time to add
+     */
+    void add(@NonNull Phase phase, long nanos) {
+        int index = phase.ordinal();
+        while (true) {
+            long current = durations.get(index);
+            long updated = current < 0 ? nanos : current + nanos;
+            if (durations.compareAndSet(index, current, updated)) return;
+        }
+    }
+
+    /**
+     * Counts a network call.
+     */
+    void onCall() {
+        calls.incrementAndGet();
+    }
+
+    /**
+     * Marks the end of the request.
+     * @param errorCode the error code, or null if successful
+     */
+    void finish(@Nullable BranchSearchError.ERR_CODE errorCode) {
+        this.errorCode = errorCode;
+        this.totalNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @return the request url
+     */
+    @NonNull
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @param phase a phase
+     * @return the time spent in the given phase in nanoseconds, or -1 if it did not happen
+     */
+    public long getDurationNanos(@NonNull Phase phase) {
+        return durations.get(phase.ordinal());
+    }
+
+    /**
+     * @return the time from payload creation to result delivery in nanoseconds
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return the number of network calls: more than one if the request was retried or hedged
+     */
+    public int getCallCount() {
+        return calls.get();
+    }
+
+    /**
+     * @return the error code delivered to the callback, or null if the request was successful
+     */
+    @Nullable
+    public BranchSearchError.ERR_CODE getErrorCode() {
+        return errorCode;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(url);
+        builder.append(String.format(Locale.US, " total=%.1fms", totalNanos / 1e6));
+        for (Phase phase : PHASES) {
+            long nanos = getDurationNanos(phase);
+            if (nanos < 0) continue;
+            builder.append(String.format(Locale.US, " %s=%.1fms",
+                    phase.name().toLowerCase(Locale.US), nanos / 1e6));
+        }
+        if (errorCode != null) builder.append(" error=").append(errorCode);
+        return builder.toString();
+    }
+}
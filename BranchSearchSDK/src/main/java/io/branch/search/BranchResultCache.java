@@ -0,0 +1,218 @@
+package io.branch.search;
+
+import android.os.Parcel;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of parsed {@link BranchSearchResult}s.
+ *
+ * Entries are keyed on a normalized version of the {@link BranchSearchRequest}: the query
+ * (trimmed, lower-cased, with collapsed whitespace), the result limits, the query source,
+ * the extras and the user location, rounded to a grid cell of {@link #LOCATION_GRID_DEGREES}.
+ * The key also includes the configuration that responses depend on: locale, country,
+ * Branch key and request extras, see {@link BranchConfiguration#getCacheKey(BranchDeviceInfo)}.
+ * Things that change on every request, like the timestamp, are not part of the key.
+ *
+ * The cache is bounded by an approximate memory budget in bytes and entries expire after
+ * a fixed time to live. Expired entries are treated as misses and evicted on access.
+ * Since results depend on which apps are installed, the cache is also cleared when
+ * a package is added or removed. {@link LruCache} is thread safe, and so is this class.
+ *
+ * Results are deep copied in and out of the cache, so callers can modify them. Note that
+ * a cached result is a replay of the original response: its click tracking urls are the
+ * ones the server returned for the original request.
+ */
+class BranchResultCache {
+
+    /** Roughly 1km at the equator. */
+    private static final double LOCATION_GRID_DEGREES = 0.01;
+
+    // Rough per-object costs used to estimate the memory footprint of a result.
+    private static final int RESULT_OVERHEAD_BYTES = 64;
+    private static final int APP_OVERHEAD_BYTES = 96;
+    private static final int LINK_OVERHEAD_BYTES = 160;
+    private static final int METADATA_ENTRY_BYTES = 64;
+
+    private final LruCache<String, Entry> cache;
+    private final long ttlMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static class Entry {
+        private final BranchSearchResult result;
+        private final long expiresAtMillis;
+        private final int sizeBytes;
+
+        private Entry(@NonNull BranchSearchResult result, long expiresAtMillis) {
+            this.result = result;
+            this.expiresAtMillis = expiresAtMillis;
+            this.sizeBytes = estimateSize(result);
+        }
+    }
+
+    BranchResultCache(int maxSizeBytes, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.cache = new LruCache<String, Entry>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(@NonNull String key, @NonNull Entry value) {
+                return value.sizeBytes + key.length() * 2;
+            }
+        };
+    }
+
+    /**
+     * Creates the cache key for the given request. The key should be computed when the request
+     * is fired, so that the location matches the one that was sent to the server.
+     * @param request a request
+     * @param config the configuration
+     * @param info device info holding the current location
+     * @return a key
+     */
+    @NonNull
+    static String createKey(@NonNull BranchSearchRequest request,
+                            @NonNull BranchConfiguration config,
+                            @NonNull BranchDeviceInfo info) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(config.getCacheKey(info));
+        builder.append('|').append(normalizeQuery(request.getQuery()));
+        builder.append('|').append(request.getMaxAppResults());
+        builder.append('|').append(request.getMaxContentPerAppResults());
+        builder.append('|').append(request.getQuerySource());
+        builder.append('|').append(request.isQueryModificationDisabled());
+        builder.append('|').append(Math.round(info.latitude / LOCATION_GRID_DEGREES));
+        builder.append('|').append(Math.round(info.longitude / LOCATION_GRID_DEGREES));
+        Map<String, Object> extra = request.getExtra();
+        if (!extra.isEmpty()) {
+            // Sort the extras so that insertion order does not matter.
+            builder.append('|').append(new TreeMap<>(extra));
+        }
+        return builder.toString();
+    }
+
+    @NonNull
+    static String normalizeQuery(@NonNull String query) {
+        return query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns a cached result for the given key, or null if there's none or it has expired.
+     * The returned result is bound to the given request.
+     * @param key a key from {@link #createKey(BranchSearchRequest, BranchConfiguration, BranchDeviceInfo)}
+     * @param request the request that is being served
+     * @return a result or null
+     */
+    @Nullable
+    BranchSearchResult get(@NonNull String key, @NonNull BranchSearchRequest request) {
+        Entry entry = cache.get(key);
+        if (entry != null && entry.expiresAtMillis < System.currentTimeMillis()) {
+            cache.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        // Copy the results so that callers can't modify the cached ones.
+        return new BranchSearchResult(request,
+                entry.result.getCorrectedQuery(),
+                copy(entry.result.getResults()));
+    }
+
+    /**
+     * Stores the result for the given key.
+     * @param key a key from {@link #createKey(BranchSearchRequest, BranchConfiguration, BranchDeviceInfo)}
+     * @param result a result
+     */
+    void put(@NonNull String key, @NonNull BranchSearchResult result) {
+        // Copy the results, since the original ones are handed to the caller.
+        result = new BranchSearchResult(result.getBranchSearchRequest(),
+                result.getCorrectedQuery(),
+                copy(result.getResults()));
+        cache.put(key, new Entry(result, System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * Removes all entries.
+     */
+    void clear() {
+        cache.evictAll();
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the approximate size of the cached entries, in bytes
+     */
+    int getSizeBytes() {
+        return cache.size();
+    }
+
+    /**
+     * Deep copies the given results, including their links, through a {@link Parcel}.
+     */
+    @NonNull
+    private static List<BranchAppResult> copy(@NonNull List<BranchAppResult> results) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeTypedList(results);
+            parcel.setDataPosition(0);
+            return parcel.createTypedArrayList(BranchAppResult.CREATOR);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static int estimateSize(@NonNull BranchSearchResult result) {
+        int size = RESULT_OVERHEAD_BYTES + sizeOf(result.getCorrectedQuery());
+        for (BranchAppResult app : result.getResults()) {
+            size += APP_OVERHEAD_BYTES;
+            size += sizeOf(app.getAppName());
+            size += sizeOf(app.getPackageName());
+            size += sizeOf(app.getAppIconUrl());
+            size += sizeOf(app.getRankingHint());
+            List<BranchLinkResult> links = app.getDeepLinks();
+            for (BranchLinkResult link : links) {
+                size += LINK_OVERHEAD_BYTES;
+                size += sizeOf(link.getEntityID());
+                size += sizeOf(link.getName());
+                size += sizeOf(link.getDescription());
+                size += sizeOf(link.getImageUrl());
+                size += sizeOf(link.getType());
+                size += sizeOf(link.getRankingHint());
+                size += sizeOf(link.getRoutingMode());
+                size += sizeOf(link.getUriScheme());
+                size += sizeOf(link.getWebLink());
+                size += sizeOf(link.getClickTrackingUrl());
+                size += sizeOf(link.getAndroidShortcutId());
+                size += sizeOf(link.deepview_extra_text);
+                // App name and icon url are shared with the app result.
+                JSONObject metadata = link.getMetadata();
+                if (metadata != null) {
+                    size += metadata.length() * METADATA_ENTRY_BYTES;
+                }
+            }
+        }
+        return size;
+    }
+
+    private static int sizeOf(@Nullable String string) {
+        return string == null ? 0 : string.length() * 2;
+    }
+}
@@ -0,0 +1,148 @@
+package io.branch.search;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Turns parsed {@link BranchAppResult.Raw} apps into displayable {@link BranchAppResult}s.
+ *
+ * This involves checking whether each app is installed (a {@link android.content.pm.PackageManager}
+ * call) and validating the shortcuts of its links (a {@link android.content.pm.LauncherApps}
+ * call), which are both IPCs. Checks are batched per app: the package is checked once and,
+ * with the default shortcut handler, all of its shortcuts are fetched with a single query
+ * instead of one query per link. Apps are then processed in parallel on a small pool, so that
+ * the total latency does not grow with the number of apps and links.
+ *
+ * Shortcut validation results are cached across results by {@link BranchCachingShortcutHandler}.
+ *
+ * Apps can be submitted while the response is still being parsed, see
+ * {@link #submit(BranchAppResult.Raw)}.
+ */
+class BranchResultProcessor {
+
+    private static final int POOL_SIZE = 4;
+
+    private final BranchExecutor executor = new BranchExecutor(POOL_SIZE);
+    private final Context context;
+    private final BranchConfiguration configuration;
+
+    BranchResultProcessor(@NonNull Context context, @NonNull BranchConfiguration configuration) {
+        this.context = context.getApplicationContext();
+        this.configuration = configuration;
+    }
+
+    /**
+     * Starts processing the given app on the pool.
+     * @param raw a raw app
+     * @return a future for {@link #get(Future)}
+     */
+    @NonNull
+    Future<BranchAppResult> submit(@NonNull final BranchAppResult.Raw raw) {
+        // Submitted while parsing, so this is the timeline of the response, if any.
+        final BranchRequestTimeline timeline = BranchMetrics.getCurrentTimeline();
+        FutureTask<BranchAppResult> task = new FutureTask<>(new Callable<BranchAppResult>() {
+            @Override
+            public BranchAppResult call() {
+                if (timeline == null) return process(raw);
+                long start = System.nanoTime();
+                try {
+                    return process(raw);
+                } finally {
+                    timeline.add(BranchRequestTimeline.Phase.PROCESSING, System.nanoTime() - start);
+                }
+            }
+        });
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Processes all the given apps in parallel and waits for them.
+     * @param raws raw apps
+     * @return the apps to display, in the same order
+     * @throws IOException if interrupted
+     */
+    @WorkerThread
+    @NonNull
+    List<BranchAppResult> processAll(@NonNull List<BranchAppResult.Raw> raws) throws IOException {
+        List<Future<BranchAppResult>> futures = new ArrayList<>(raws.size());
+        for (BranchAppResult.Raw raw : raws) {
+            futures.add(submit(raw));
+        }
+        List<BranchAppResult> results = new ArrayList<>(raws.size());
+        for (Future<BranchAppResult> future : futures) {
+            BranchAppResult result = get(future);
+            if (result != null) results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Waits for the given future.
+     * @param future a future from {@link #submit(BranchAppResult.Raw)}
+     * @return the app, or null if it should not be displayed
+     * @throws IOException if interrupted
+     */
+    @Nullable
+    static BranchAppResult get(@NonNull Future<BranchAppResult> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            // A faulty shortcut handler. Drop this app, not the whole result.
+            return null;
+        }
+    }
+
+    @WorkerThread
+    @Nullable
+    private BranchAppResult process(@NonNull BranchAppResult.Raw raw) {
+        boolean isInstalled = Util.isAppInstalled(context, raw.packageName);
+        Set<String> shortcutIds;
+        boolean traced = BranchTrace.begin("IBranchShortcutHandler.validateShortcut");
+        try {
+            shortcutIds = getValidShortcutIds(raw);
+        } finally {
+            BranchTrace.end(traced);
+        }
+        return raw.create(isInstalled, shortcutIds);
+    }
+
+    @WorkerThread
+    @NonNull
+    private Set<String> getValidShortcutIds(@NonNull BranchAppResult.Raw raw) {
+        Set<String> ids = raw.getShortcutIds();
+        if (ids.isEmpty()) return Collections.emptySet();
+        IBranchShortcutHandler handler = configuration.getShortcutHandler();
+        if (handler instanceof BranchCachingShortcutHandler) {
+            return ((BranchCachingShortcutHandler) handler)
+                    .getValidShortcutIds(context, raw.packageName, ids);
+        } else if (handler instanceof BranchDefaultShortcutHandler) {
+            return ((BranchDefaultShortcutHandler) handler)
+                    .getValidShortcutIds(context, raw.packageName);
+        }
+        Set<String> valid = new HashSet<>();
+        for (String id : ids) {
+            if (handler.validateShortcut(context, id, raw.packageName)) {
+                valid.add(id);
+            }
+        }
+        return valid;
+    }
+}
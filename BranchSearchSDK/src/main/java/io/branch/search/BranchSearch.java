@@ -4,9 +4,16 @@ import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
 /**
  * Main entry class for Branch Discovery. This class need to be initialized before accessing any Branch
  * discovery functionality.
@@ -19,7 +26,10 @@ public class BranchSearch {
     enum Channel { SEARCH, AUTOSUGGEST, QUERYHINT }
 
     private static final String TAG = "BranchSearch";
-    private static BranchSearch thisInstance;
+    private static volatile BranchSearch thisInstance;
+
+    // Runs the lazy initialization. Threads are only created when needed.
+    private static final BranchExecutor INIT_EXECUTOR = new BranchExecutor(2);
 
     @VisibleForTesting
     URLConnectionNetworkHandler[] networkHandlers
@@ -27,8 +37,16 @@ public class BranchSearch {
 
     private BranchConfiguration branchConfiguration;
     private BranchDeviceInfo branchDeviceInfo;
+    private BranchResultCache resultCache;
+    private BranchDiskCache diskCache;
+    private BranchAutoSuggestIndex autoSuggestIndex;
+    private BranchResultProcessor resultProcessor;
+    private BranchClickTracker clickTracker;
     private Context appContext;
 
+    // Requests made before a lazy initialization completes. Null once initialized.
+    private List<PendingRequest> pendingRequests;
+
     /**
      * Initialize the BranchSearch SDK with the default configuration options.
      * @param context Context
@@ -40,26 +58,230 @@ public class BranchSearch {
 
     /**
      * Initialize the BranchSearch SDK with custom configuration options.
+     * See {@link BranchConfiguration#setLazyInitEnabled(boolean)} to keep this call
+     * off the app startup path.
      * @param context Context
      * @param config {@link BranchConfiguration} configuration
      * @return this BranchSearch instance.
      */
     public static BranchSearch init(@NonNull Context context, @NonNull BranchConfiguration config) {
-        thisInstance = new BranchSearch(context, config, new BranchDeviceInfo());
+        boolean traced = BranchTrace.begin("BranchSearch.init");
+        try {
+            BranchSearch search = new BranchSearch(context, config, new BranchDeviceInfo());
+            thisInstance = search;
+            // Before the client is configured, since it depends on it.
+            BranchMetrics.setListener(config.getMetricsListener());
+            if (config.isLazyInitEnabled()) {
+                search.initializeInBackground();
+                return search;
+            }
 
-        // Initialize BranchSearch objects.
-        thisInstance.branchDeviceInfo.sync(thisInstance.getApplicationContext());
-        thisInstance.branchConfiguration.sync(thisInstance.getApplicationContext());
+            // Initialize BranchSearch objects.
+            BranchHttpClient.configure(config.getOkHttpClient(), config.getConnectionPool());
+            search.startMonitoring();
+            search.branchDeviceInfo.sync(search.appContext);
+            search.branchConfiguration.sync(search.appContext);
+            if (checkKey(search) == null) return null;
+            search.seedAutoSuggestIndex();
+            return search;
+        } finally {
+            BranchTrace.end(traced);
+        }
+    }
 
-        // Ensure that there is a valid key
+    /**
+     * Ensures that there is a valid key.
+     * @param search the instance being initialized
+     * @return the instance, or null if the key is invalid
+     */
+    @Nullable
+    private static BranchSearch checkKey(@NonNull BranchSearch search) {
         // TODO dev gave us a bad key. why would we return null here (making getInstance() nullable
         //  and crashing later in unexpected ways) instead of crashing with a clear message?
         //  We need a key to work! Our code would also be more elegant since we could crash in config.sync().
-        if (!config.hasValidKey()) {
+        if (!search.branchConfiguration.hasValidKey()) {
             Log.e(TAG, "Invalid Branch Key.");
-            thisInstance = null;
+            if (thisInstance == search) thisInstance = null;
+            return null;
         }
-        return thisInstance;
+        return search;
+    }
+
+    /**
+     * Does the work of {@link #init(Context, BranchConfiguration)} in background, see
+     * {@link BranchConfiguration#setLazyInitEnabled(boolean)}. The device info and the
+     * configuration are independent, so they are synced in parallel.
+     */
+    private void initializeInBackground() {
+        pendingRequests = new ArrayList<>();
+        final FutureTask<Void> infoSync = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                branchDeviceInfo.sync(appContext);
+            }
+        }, null);
+        INIT_EXECUTOR.execute(infoSync);
+        INIT_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean traced = BranchTrace.begin("BranchSearch.initializeInBackground");
+                try {
+                    BranchConfiguration config = branchConfiguration;
+                    BranchHttpClient.configure(config.getOkHttpClient(), config.getConnectionPool());
+                    startMonitoring();
+                    config.sync(appContext);
+                    try {
+                        infoSync.get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        // Should not happen. Requests will use the default device info
+                        // until the next sync.
+                    }
+                } finally {
+                    BranchTrace.end(traced);
+                }
+                boolean success = checkKey(BranchSearch.this) != null;
+                if (success) seedAutoSuggestIndex();
+                onInitialized(success);
+            }
+        });
+    }
+
+    /**
+     * Starts the package index, the click tracker and the network monitoring in background.
+     * They register receivers and read from disk, and requests work without them until they
+     * are ready, so neither {@link #init(Context, BranchConfiguration)} nor the lazy
+     * initialization waits for them.
+     */
+    private void startMonitoring() {
+        INIT_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean traced = BranchTrace.begin("BranchSearch.startMonitoring");
+                try {
+                    final BranchResultCache cache = resultCache;
+                    // Results are filtered and ranked based on installed apps.
+                    BranchPackageIndex.getInstance(appContext).setListener(cache == null ? null
+                            : new BranchPackageIndex.Listener() {
+                        @Override
+                        public void onPackagesChanged() {
+                            cache.clear();
+                        }
+                    });
+                    clickTracker.start();
+                    BranchTimeoutPolicy.startMonitoring(appContext);
+                } finally {
+                    BranchTrace.end(traced);
+                }
+            }
+        });
+    }
+
+    /**
+     * Seeds the local autosuggest index, which only lives in memory, with the autosuggestions
+     * and query hints stored in the disk cache for the current region, so that it can answer
+     * right after the process starts. Must be called once the device info and configuration
+     * are synced, since the region depends on them. The files are read on the cache thread.
+     */
+    private void seedAutoSuggestIndex() {
+        final BranchAutoSuggestIndex index = autoSuggestIndex;
+        if (index == null || diskCache == null) return;
+        BranchDiskCache.Channel[] channels = new BranchDiskCache.Channel[] {
+                BranchDiskCache.Channel.AUTOSUGGEST,
+                BranchDiskCache.Channel.QUERYHINT
+        };
+        for (BranchDiskCache.Channel channel : channels) {
+            final float weight = channel == BranchDiskCache.Channel.QUERYHINT
+                    ? BranchAutoSuggestIndex.WEIGHT_HINT
+                    : BranchAutoSuggestIndex.WEIGHT_SUGGESTION;
+            String prefix = BranchDiskCache.createKeyPrefix(channel,
+                    branchConfiguration, branchDeviceInfo);
+            diskCache.getAll(channel, prefix, new BranchDiskCache.EntriesCallback() {
+                @Override
+                public void onLoaded(@NonNull List<BranchDiskCache.Entry> entries) {
+                    for (BranchDiskCache.Entry entry : entries) {
+                        index.addAll(entry.values, weight);
+                    }
+                }
+            });
+        }
+    }
+
+    private void onInitialized(boolean success) {
+        final List<PendingRequest> requests;
+        synchronized (this) {
+            requests = pendingRequests;
+            pendingRequests = null;
+        }
+        if (requests == null || requests.isEmpty()) return;
+        if (!success) {
+            failPendingRequests(requests);
+            return;
+        }
+        Util.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (Runnable request : requests) {
+                    request.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Delivers an error to the requests that were held during a failed initialization,
+     * since their methods already returned true. Like a search with an invalid key, this is
+     * {@link BranchSearchError.ERR_CODE#SERVICE_DISABLED_ERR} if the service is disabled
+     * for the key, and {@link BranchSearchError.ERR_CODE#UNAUTHORIZED_ERR} otherwise.
+     */
+    private void failPendingRequests(@NonNull final List<PendingRequest> requests) {
+        String key = branchConfiguration.getBranchKey();
+        if (key == null || key.isEmpty()) {
+            Util.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    failAll(requests, BranchSearchError.ERR_CODE.UNAUTHORIZED_ERR);
+                }
+            });
+            return;
+        }
+        // Called on the UI thread.
+        BranchSearchInterface.serviceEnabled(key, new IBranchServiceEnabledEvents() {
+            @Override
+            public void onBranchServiceEnabledResult(@NonNull BranchServiceEnabledResult result) {
+                failAll(requests, result.isEnabled()
+                        ? BranchSearchError.ERR_CODE.UNAUTHORIZED_ERR
+                        : BranchSearchError.ERR_CODE.SERVICE_DISABLED_ERR);
+            }
+        });
+    }
+
+    private static void failAll(@NonNull List<PendingRequest> requests,
+                                @NonNull BranchSearchError.ERR_CODE code) {
+        for (PendingRequest request : requests) {
+            request.fail(new BranchSearchError(code));
+        }
+    }
+
+    /**
+     * A request held until the lazy initialization is done.
+     */
+    private abstract static class PendingRequest implements Runnable {
+        /**
+         * Called on the UI thread instead of {@link #run()} if the initialization failed.
+         * @param error the error
+         */
+        abstract void fail(@NonNull BranchSearchError error);
+    }
+
+    /**
+     * Holds the given request if a lazy initialization is still running.
+     * @param request the request to run once initialized
+     * @return true if the request was held
+     */
+    private synchronized boolean deferUntilInitialized(@NonNull PendingRequest request) {
+        if (pendingRequests == null) return false;
+        pendingRequests.add(request);
+        return true;
     }
 
     /**
@@ -76,10 +298,19 @@ public class BranchSearch {
         this.appContext = context.getApplicationContext();
         this.branchConfiguration = config;
         this.branchDeviceInfo = info;
+        this.resultProcessor = new BranchResultProcessor(appContext, config);
+        this.clickTracker = BranchClickTracker.getInstance(appContext);
+        // Network handlers are created on first use, see getNetworkHandler().
 
-        // We need a network handler for each protocol.
-        for (Channel channel : Channel.values()) {
-            this.networkHandlers[channel.ordinal()] = URLConnectionNetworkHandler.initialize();
+        if (config.getResultCacheSize() > 0 && config.getResultCacheTimeToLive() > 0) {
+            this.resultCache = new BranchResultCache(config.getResultCacheSize(),
+                    config.getResultCacheTimeToLive());
+        }
+        if (config.getDiskCacheSize() > 0) {
+            this.diskCache = new BranchDiskCache(appContext, config.getDiskCacheSize());
+        }
+        if (config.isLocalAutoSuggestEnabled()) {
+            this.autoSuggestIndex = new BranchAutoSuggestIndex();
         }
     }
 
@@ -92,14 +323,38 @@ public class BranchSearch {
         return BuildConfig.VERSION_NAME;
     }
 
+    /**
+     * Enables or disables systrace / Perfetto sections for the SDK work: payload creation,
+     * encryption, requests, parsing, app and shortcut checks, and DeepView images. Each request
+     * also gets an async section on API 29+. This can be called at any time, including before
+     * {@link #init(Context)}, and also works in release builds. Disabled by default.
+     * @param enabled true to emit trace sections
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static void setTracingEnabled(boolean enabled) {
+        BranchTrace.setEnabled(enabled);
+    }
+
     /**
      * Query for results.
      * @param request {@link BranchSearchRequest} request
-     * @param callback {@link IBranchSearchEvents} Callback to receive results
+     * @param callback {@link IBranchSearchEvents} Callback to receive results. Pass a
+     *                 {@link IBranchSearchStreamEvents} to receive each app as soon as it is parsed
      * @return true if the request was posted
      */
-    public boolean query(@NonNull BranchSearchRequest request,
-                         @NonNull IBranchSearchEvents callback) {
+    public boolean query(@NonNull final BranchSearchRequest request,
+                         @NonNull final IBranchSearchEvents callback) {
+        if (deferUntilInitialized(new PendingRequest() {
+            @Override
+            public void run() {
+                BranchSearchInterface.search(request, callback);
+            }
+
+            @Override
+            void fail(@NonNull BranchSearchError error) {
+                callback.onBranchSearchError(error);
+            }
+        })) return true;
         return BranchSearchInterface.search(request, callback);
     }
 
@@ -110,8 +365,19 @@ public class BranchSearch {
      * @return true if the request was posted.
      */
     @SuppressWarnings("UnusedReturnValue")
-    public boolean queryHint(@NonNull BranchQueryHintRequest request,
-                             @NonNull IBranchQueryHintEvents callback) {
+    public boolean queryHint(@NonNull final BranchQueryHintRequest request,
+                             @NonNull final IBranchQueryHintEvents callback) {
+        if (deferUntilInitialized(new PendingRequest() {
+            @Override
+            public void run() {
+                BranchSearchInterface.queryHint(request, callback);
+            }
+
+            @Override
+            void fail(@NonNull BranchSearchError error) {
+                callback.onBranchQueryHintError(error);
+            }
+        })) return true;
         return BranchSearchInterface.queryHint(request, callback);
     }
 
@@ -133,15 +399,173 @@ public class BranchSearch {
      * @return true if the request was posted.
      */
     @SuppressWarnings("UnusedReturnValue")
-    public boolean autoSuggest(@NonNull BranchAutoSuggestRequest request,
-                               @NonNull IBranchAutoSuggestEvents callback) {
+    public boolean autoSuggest(@NonNull final BranchAutoSuggestRequest request,
+                               @NonNull final IBranchAutoSuggestEvents callback) {
+        if (deferUntilInitialized(new PendingRequest() {
+            @Override
+            public void run() {
+                BranchSearchInterface.autoSuggest(request, callback);
+            }
+
+            @Override
+            void fail(@NonNull BranchSearchError error) {
+                callback.onBranchAutoSuggestError(error);
+            }
+        })) return true;
         return BranchSearchInterface.autoSuggest(request, callback);
     }
 
+    /**
+     * Prepares the SDK for upcoming requests. This should be called when the search UI is
+     * about to be shown, for example when the search box gains focus.
+     *
+     * This resolves the search host and opens a connection to it, so that the first query does
+     * not pay for DNS, TCP and TLS setup. The connection is then kept alive for a few minutes.
+     * Calling this often is cheap: calls that are close to each other are ignored.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public void prewarm() {
+        prewarm(false);
+    }
+
+    /**
+     * Prepares the SDK for upcoming requests, see {@link #prewarm()}.
+     *
+     * If fetchQueryHints is true, this also fetches query hints ahead of time, so that
+     * a following call to {@link #queryHint(BranchQueryHintRequest, IBranchQueryHintEvents)}
+     * with a default request can be served from the disk cache
+     * (see {@link BranchConfiguration#setDiskCacheSize(long)}).
+     *
+     * @param fetchQueryHints true to also fetch query hints
+     */
+    @SuppressWarnings({"WeakerAccess"})
+    public void prewarm(final boolean fetchQueryHints) {
+        if (deferUntilInitialized(new PendingRequest() {
+            @Override
+            public void run() {
+                prewarm(fetchQueryHints);
+            }
+
+            @Override
+            void fail(@NonNull BranchSearchError error) {
+                // Nothing to report.
+            }
+        })) return;
+        BranchSearchInterface.prewarm(branchConfiguration.getUrl());
+        if (fetchQueryHints) {
+            BranchSearchInterface.queryHint(BranchQueryHintRequest.create(), null);
+        }
+    }
+
+    /**
+     * Returns local auto-suggestions for the given request, synchronously and without
+     * any network call. Suggestions are computed from previous autosuggest results, query
+     * hints and searches. This is meant to be called on every keystroke, along with
+     * {@link #autoSuggest(BranchAutoSuggestRequest, IBranchAutoSuggestEvents)}, so that
+     * the user sees suggestions before the server responds.
+     * @param request {@link BranchAutoSuggestRequest} request
+     * @return local suggestions, possibly empty
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    @NonNull
+    public BranchAutoSuggestResult localAutoSuggest(@NonNull BranchAutoSuggestRequest request) {
+        List<String> queries = autoSuggestIndex == null
+                ? Collections.<String>emptyList()
+                : autoSuggestIndex.query(request.getQuery(), request.getMaxResults());
+        return BranchAutoSuggestResult.createFromQueries(queries, true);
+    }
+
+    /**
+     * Returns the round trip time statistics of search requests over the last few minutes.
+     * @return the stats
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    @NonNull
+    public BranchLatencyStats getSearchLatencyStats() {
+        return getNetworkHandler(Channel.SEARCH).getLatencyRecorder().getStats();
+    }
+
+    /**
+     * Returns the round trip time statistics of autosuggest requests over the last few minutes.
+     * @return the stats
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    @NonNull
+    public BranchLatencyStats getAutoSuggestLatencyStats() {
+        return getNetworkHandler(Channel.AUTOSUGGEST).getLatencyRecorder().getStats();
+    }
+
+    /**
+     * Returns the round trip time statistics of query hint requests over the last few minutes.
+     * @return the stats
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    @NonNull
+    public BranchLatencyStats getQueryHintLatencyStats() {
+        return getNetworkHandler(Channel.QUERYHINT).getLatencyRecorder().getStats();
+    }
+
+    /**
+     * Returns the number of threads currently alive in the executor that builds requests.
+     * @return the thread count
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public int getExecutorThreadCount() {
+        return BranchSharedExecutor.getInstance().getThreadCount();
+    }
+
+    /**
+     * Returns the number of requests waiting for an executor thread.
+     * @return the queue depth
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public int getExecutorQueueDepth() {
+        return BranchSharedExecutor.getInstance().getQueueDepth();
+    }
+
+    /**
+     * Returns the number of requests that were dropped before reaching the network, because
+     * newer requests replaced them or because they waited too long for an executor thread.
+     * @return the dropped request count
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public long getDroppedRequestCount() {
+        return BranchSharedExecutor.getInstance().getDroppedCount();
+    }
+
     // Package Private
     @NonNull
     URLConnectionNetworkHandler getNetworkHandler(@NonNull Channel channel) {
-        return this.networkHandlers[channel.ordinal()];
+        // We need a network handler for each protocol. Create it on first use.
+        synchronized (networkHandlers) {
+            URLConnectionNetworkHandler handler = networkHandlers[channel.ordinal()];
+            if (handler == null) {
+                if (channel == Channel.SEARCH) {
+                    handler = URLConnectionNetworkHandler.initialize(
+                            BranchSharedExecutor.Lane.SEARCH, BranchSharedExecutor.Lane.SEARCH,
+                            BranchTimeoutPolicy.forSearch());
+                    handler.setDebounce(branchConfiguration.getSearchDebounce());
+                    if (branchConfiguration.getSearchHedgingPercentile() > 0
+                            && branchConfiguration.getSearchHedgingBudgetPercent() > 0) {
+                        handler.setHedging(new BranchHedgingPolicy(
+                                branchConfiguration.getSearchHedgingPercentile(),
+                                branchConfiguration.getSearchHedgingBudgetPercent(),
+                                handler.getLatencyRecorder()));
+                    }
+                } else if (channel == Channel.AUTOSUGGEST) {
+                    handler = URLConnectionNetworkHandler.initialize(
+                            BranchSharedExecutor.Lane.AUTOSUGGEST, BranchSharedExecutor.Lane.AUTOSUGGEST,
+                            BranchTimeoutPolicy.forAutoSuggest());
+                    handler.setDebounce(branchConfiguration.getAutoSuggestDebounce());
+                } else {
+                    handler = URLConnectionNetworkHandler.initialize(
+                            BranchSharedExecutor.Lane.QUERYHINT, BranchSharedExecutor.Lane.QUERYHINT,
+                            BranchTimeoutPolicy.forQueryHint());
+                }
+                networkHandlers[channel.ordinal()] = handler;
+            }
+            return handler;
+        }
     }
 
     // Undocumented
@@ -159,6 +583,31 @@ public class BranchSearch {
         return branchDeviceInfo;
     }
 
+    @NonNull
+    BranchResultProcessor getResultProcessor() {
+        return resultProcessor;
+    }
+
+    @NonNull
+    BranchClickTracker getClickTracker() {
+        return clickTracker;
+    }
+
+    @Nullable
+    BranchResultCache getResultCache() {
+        return resultCache;
+    }
+
+    @Nullable
+    BranchDiskCache getDiskCache() {
+        return diskCache;
+    }
+
+    @Nullable
+    BranchAutoSuggestIndex getAutoSuggestIndex() {
+        return autoSuggestIndex;
+    }
+
     /**
      * Static utility to check whether the service is enabled.
      *
@@ -256,7 +705,7 @@ public class BranchSearch {
                                @NonNull final IBranchQueryResults callback) {
         // Wrap the old request in the new request.
         // Wrap the old callback in the new callback.
-        return BranchSearchInterface.autoSuggest(
+        return autoSuggest(
                 BranchAutoSuggestRequest.create(request.getQuery()),
                 new IBranchAutoSuggestEvents() {
             @Override
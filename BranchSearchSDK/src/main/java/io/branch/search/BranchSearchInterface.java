@@ -1,10 +1,23 @@
 package io.branch.search;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
+import android.util.JsonReader;
 
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.Response;
+
 /**
  * Class for searching a user query with Branch.
  */
@@ -16,8 +29,13 @@ class BranchSearchInterface {
     private static final String BRANCH_SERVICE_ENABLED_URL_PREFIX = "https://vulcan.branch.io/configuration/";
     private static final String BRANCH_SERVICE_ENABLED_URL_SUFFIX = ".json";
 
+    // A connection is kept alive in the pool for minutes, no need to prewarm more often.
+    private static final long PREWARM_INTERVAL_MILLIS = 1000 * 30; // 30 seconds
+
     @VisibleForTesting static URLConnectionNetworkHandler sRawHandler
-            = URLConnectionNetworkHandler.initialize();
+            = URLConnectionNetworkHandler.initialize(BranchSharedExecutor.Lane.SERVICE_ENABLED,
+            BranchSharedExecutor.Lane.SERVICE_ENABLED, BranchTimeoutPolicy.forGet());
+    private static long sLastPrewarmMillis = 0L;
 
     static boolean search(final BranchSearchRequest request,
                           final IBranchSearchEvents callback) {
@@ -27,8 +45,72 @@ class BranchSearchInterface {
         }
 
         final BranchConfiguration configuration = search.getBranchConfiguration();
-        JSONObject jsonPayload = createPayload(request, configuration, search.getBranchDeviceInfo());
-        search.getNetworkHandler(BranchSearch.Channel.SEARCH).executePost(configuration.getUrl(), jsonPayload, new IURLConnectionEvents() {
+        final URLConnectionNetworkHandler handler = search.getNetworkHandler(BranchSearch.Channel.SEARCH);
+
+        // Try the cache first. If we have a hit, cancel any pending request, just like
+        // a new network request would do, so that it does not deliver an older result later.
+        final BranchResultCache cache = search.getResultCache();
+        final String cacheKey = cache == null ? null
+                : BranchResultCache.createKey(request, configuration, search.getBranchDeviceInfo());
+        if (cache != null) {
+            final BranchSearchResult cached = cache.get(cacheKey, request);
+            if (cached != null) {
+                BranchMetrics.count(IBranchMetricsListener.Counter.CACHE_HIT);
+                handler.cancelPost();
+                if (callback != null) {
+                    Util.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliverSearchResult(callback, cached, false);
+                        }
+                    });
+                }
+                return true;
+            }
+        }
+
+        BranchPayload jsonPayload = createPayload(request, configuration, search.getBranchDeviceInfo());
+        // Results are parsed while they are read from the network, on the network thread.
+        handler.executePost(configuration.getUrl(), jsonPayload, new IURLConnectionStreamEvents<BranchSearchResult>() {
+            @NonNull
+            @Override
+            public BranchSearchResult onParse(@NonNull JsonReader reader,
+                                              @NonNull final Executor progress) throws IOException {
+                BranchSearchResult.AppResultListener listener = null;
+                if (callback instanceof IBranchSearchStreamEvents) {
+                    final IBranchSearchStreamEvents streamCallback = (IBranchSearchStreamEvents) callback;
+                    listener = new BranchSearchResult.AppResultListener() {
+                        @Override
+                        public void onAppResult(@NonNull final BranchAppResult result, final int index) {
+                            progress.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    streamCallback.onBranchAppResult(result, index);
+                                }
+                            });
+                        }
+                    };
+                }
+                return BranchSearchResult.createFromJson(request, reader,
+                        search.getResultProcessor(), listener);
+            }
+
+            @Override
+            public void onParsedResult(@NonNull BranchSearchResult result) {
+                onSearchResult(result, true);
+            }
+
+            private void onSearchResult(@NonNull BranchSearchResult result, boolean streamed) {
+                if (callback != null) {
+                    if (cache != null) cache.put(cacheKey, result);
+                    BranchAutoSuggestIndex index = search.getAutoSuggestIndex();
+                    if (index != null && !result.getResults().isEmpty()) {
+                        index.add(request.getQuery(), BranchAutoSuggestIndex.WEIGHT_SEARCH);
+                    }
+                    deliverSearchResult(callback, result, streamed);
+                }
+            }
+
             @Override
             public void onResult(final @NonNull JSONObject response) {
                 if (callback != null) {
@@ -51,7 +133,17 @@ class BranchSearchInterface {
                     } else if (isError) {
                         callback.onBranchSearchError((BranchSearchError) response);
                     } else {
-                        callback.onBranchSearchResult(BranchSearchResult.createFromJson(request, response));
+                        // Not a 200, but not an error either. Parse it the old way.
+                        BranchSearchResult result;
+                        try {
+                            result = BranchSearchResult.createFromJson(request, response,
+                                    search.getResultProcessor());
+                        } catch (IOException e) {
+                            callback.onBranchSearchError(new BranchSearchError(
+                                    BranchSearchError.ERR_CODE.UNKNOWN_ERR));
+                            return;
+                        }
+                        onSearchResult(result, false);
                     }
                 }
             }
@@ -61,6 +153,22 @@ class BranchSearchInterface {
         return true;
     }
 
+    /**
+     * Delivers a search result. Streaming callbacks receive all apps first, unless this was
+     * already done while parsing.
+     */
+    private static void deliverSearchResult(@NonNull IBranchSearchEvents callback,
+                                            @NonNull BranchSearchResult result,
+                                            boolean streamed) {
+        if (!streamed && callback instanceof IBranchSearchStreamEvents) {
+            List<BranchAppResult> apps = result.getResults();
+            for (int i = 0; i < apps.size(); i++) {
+                ((IBranchSearchStreamEvents) callback).onBranchAppResult(apps.get(i), i);
+            }
+        }
+        callback.onBranchSearchResult(result);
+    }
+
     static boolean autoSuggest(final BranchAutoSuggestRequest request,
                                final IBranchAutoSuggestEvents callback) {
         BranchSearch search = BranchSearch.getInstance();
@@ -68,26 +176,122 @@ class BranchSearchInterface {
             return false;
         }
 
-        JSONObject jsonPayload = createPayload(request,
+        final BranchPayload jsonPayload = createPayload(request,
                 search.getBranchConfiguration(),
                 search.getBranchDeviceInfo());
-        search.getNetworkHandler(BranchSearch.Channel.AUTOSUGGEST).executePost(BRANCH_AUTOSUGGEST_URL, jsonPayload, new IURLConnectionEvents() {
+        final URLConnectionNetworkHandler handler = search.getNetworkHandler(BranchSearch.Channel.AUTOSUGGEST);
+        final BranchAutoSuggestIndex index = search.getAutoSuggestIndex();
+        final BranchDiskCache diskCache = search.getDiskCache();
+        if (diskCache == null) {
+            fetchAutoSuggest(request, handler, jsonPayload, index, null, null, null, callback);
+            return true;
+        }
+
+        // Race the disk against the network. If the disk answers first, its entry is served,
+        // and the network response only refreshes it.
+        final String key = BranchDiskCache.createKey(request,
+                search.getBranchConfiguration(), search.getBranchDeviceInfo());
+        final DiskRace race = new DiskRace();
+        final IURLConnectionEvents events = fetchAutoSuggest(request, handler, jsonPayload,
+                index, diskCache, key, race, callback);
+        diskCache.get(BranchDiskCache.Channel.AUTOSUGGEST, key, new BranchDiskCache.Callback() {
             @Override
-            public void onResult(@NonNull JSONObject response) {
+            public void onLoaded(@Nullable BranchDiskCache.Entry entry) {
+                if (entry == null) {
+                    race.onDiskMiss();
+                    return;
+                }
+                if (!race.onDiskHit()) return;
+                BranchMetrics.count(IBranchMetricsListener.Counter.DISK_CACHE_HIT);
+                if (!entry.isStale()) handler.cancelPost(events);
+                BranchAutoSuggestResult remote = BranchAutoSuggestResult.createFromQueries(entry.values, false);
+                final BranchAutoSuggestResult result = mergeLocalSuggestions(request, index, remote);
                 if (callback != null) {
-                    if (response instanceof BranchSearchError) {
-                        callback.onBranchAutoSuggestError((BranchSearchError) response);
+                    Util.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onBranchAutoSuggestResult(result);
+                        }
+                    });
+                }
+            }
+        });
+        return true;
+    }
+
+    @NonNull
+    private static IURLConnectionEvents fetchAutoSuggest(@NonNull final BranchAutoSuggestRequest request,
+                                                         @NonNull URLConnectionNetworkHandler handler,
+                                                         @NonNull BranchPayload jsonPayload,
+                                                         @Nullable final BranchAutoSuggestIndex index,
+                                                         @Nullable final BranchDiskCache diskCache,
+                                                         @Nullable final String diskCacheKey,
+                                                         @Nullable final DiskRace race,
+                                                         @Nullable final IBranchAutoSuggestEvents callback) {
+        IURLConnectionEvents events = new IURLConnectionEvents() {
+            @Override
+            public void onResult(@NonNull JSONObject response) {
+                if (response instanceof BranchSearchError) {
+                    if (callback == null) return;
+                    final BranchSearchError error = (BranchSearchError) response;
+                    BranchSearchError.ERR_CODE code = error.getErrorCode();
+                    List<String> local = index == null ? Collections.<String>emptyList()
+                            : index.query(request.getQuery(), request.getMaxResults());
+                    // If the network is slow or missing, local suggestions are better than nothing.
+                    if (!local.isEmpty() && (code == BranchSearchError.ERR_CODE.REQUEST_TIMED_OUT_ERR
+                            || code == BranchSearchError.ERR_CODE.BRANCH_NO_CONNECTIVITY_ERR)) {
+                        final BranchAutoSuggestResult result
+                                = BranchAutoSuggestResult.createFromQueries(local, true);
+                        if (race == null) {
+                            callback.onBranchAutoSuggestResult(result);
+                        } else {
+                            race.onNetworkError(new Runnable() {
+                                @Override
+                                public void run() {
+                                    callback.onBranchAutoSuggestResult(result);
+                                }
+                            });
+                        }
+                    } else if (race == null) {
+                        callback.onBranchAutoSuggestError(error);
                     } else {
-                        callback.onBranchAutoSuggestResult(BranchAutoSuggestResult.createFromJson(response));
+                        race.onNetworkError(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onBranchAutoSuggestError(error);
+                            }
+                        });
+                    }
+                } else {
+                    BranchAutoSuggestResult result = BranchAutoSuggestResult.createFromJson(response);
+                    if (diskCache != null && diskCacheKey != null) {
+                        diskCache.put(diskCacheKey, result.getQueries());
+                    }
+                    result = mergeLocalSuggestions(request, index, result);
+                    if (callback != null && (race == null || race.onNetworkResult())) {
+                        callback.onBranchAutoSuggestResult(result);
                     }
                 }
             }
 
-        });
-
-        return true;
+        };
+        handler.executePost(BRANCH_AUTOSUGGEST_URL, jsonPayload, events);
+        return events;
     }
 
+    /**
+     * Adds the remote suggestions to the local index, then merges the local suggestions
+     * for this request into the remote ones.
+     */
+    @NonNull
+    private static BranchAutoSuggestResult mergeLocalSuggestions(@NonNull BranchAutoSuggestRequest request,
+                                                                 @Nullable BranchAutoSuggestIndex index,
+                                                                 @NonNull BranchAutoSuggestResult remote) {
+        if (index == null) return remote;
+        index.addAll(remote.getQueries(), BranchAutoSuggestIndex.WEIGHT_SUGGESTION);
+        List<String> local = index.query(request.getQuery(), request.getMaxResults());
+        return remote.merge(local, request.getMaxResults());
+    }
 
     static boolean queryHint(final BranchQueryHintRequest request,
                              final IBranchQueryHintEvents callback) {
@@ -96,24 +300,189 @@ class BranchSearchInterface {
             return false;
         }
 
-        JSONObject jsonPayload = createPayload(request,
+        final BranchPayload jsonPayload = createPayload(request,
                 search.getBranchConfiguration(),
                 search.getBranchDeviceInfo());
-        search.getNetworkHandler(BranchSearch.Channel.QUERYHINT).executePost(BRANCH_QUERYHINT_URL, jsonPayload, new IURLConnectionEvents() {
+        final URLConnectionNetworkHandler handler = search.getNetworkHandler(BranchSearch.Channel.QUERYHINT);
+        final BranchAutoSuggestIndex index = search.getAutoSuggestIndex();
+        final BranchDiskCache diskCache = search.getDiskCache();
+        if (diskCache == null) {
+            fetchQueryHint(handler, jsonPayload, index, null, null, null, callback);
+            return true;
+        }
+
+        // Race the disk against the network, see autoSuggest().
+        final String key = BranchDiskCache.createKey(request,
+                search.getBranchConfiguration(), search.getBranchDeviceInfo());
+        final DiskRace race = new DiskRace();
+        final IURLConnectionEvents events = fetchQueryHint(handler, jsonPayload, index,
+                diskCache, key, race, callback);
+        diskCache.get(BranchDiskCache.Channel.QUERYHINT, key, new BranchDiskCache.Callback() {
             @Override
-            public void onResult(@NonNull JSONObject response) {
+            public void onLoaded(@Nullable BranchDiskCache.Entry entry) {
+                if (entry == null) {
+                    race.onDiskMiss();
+                    return;
+                }
+                if (!race.onDiskHit()) return;
+                BranchMetrics.count(IBranchMetricsListener.Counter.DISK_CACHE_HIT);
+                if (!entry.isStale()) handler.cancelPost(events);
+                final BranchQueryHintResult result = BranchQueryHintResult.createFromQueries(entry.values);
+                if (index != null) index.addAll(entry.values, BranchAutoSuggestIndex.WEIGHT_HINT);
                 if (callback != null) {
-                    if (response instanceof BranchSearchError) {
-                        callback.onBranchQueryHintError((BranchSearchError) response);
+                    Util.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onBranchQueryHintResult(result);
+                        }
+                    });
+                }
+            }
+        });
+        return true;
+    }
+
+    @NonNull
+    private static IURLConnectionEvents fetchQueryHint(@NonNull URLConnectionNetworkHandler handler,
+                                                       @NonNull BranchPayload jsonPayload,
+                                                       @Nullable final BranchAutoSuggestIndex index,
+                                                       @Nullable final BranchDiskCache diskCache,
+                                                       @Nullable final String diskCacheKey,
+                                                       @Nullable final DiskRace race,
+                                                       @Nullable final IBranchQueryHintEvents callback) {
+        IURLConnectionEvents events = new IURLConnectionEvents() {
+            @Override
+            public void onResult(@NonNull JSONObject response) {
+                if (response instanceof BranchSearchError) {
+                    if (callback == null) return;
+                    final BranchSearchError error = (BranchSearchError) response;
+                    if (race == null) {
+                        callback.onBranchQueryHintError(error);
                     } else {
-                        callback.onBranchQueryHintResult(BranchQueryHintResult.createFromJson(response));
+                        race.onNetworkError(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onBranchQueryHintError(error);
+                            }
+                        });
+                    }
+                } else {
+                    BranchQueryHintResult result = BranchQueryHintResult.createFromJson(response);
+                    if (index != null) {
+                        index.addAll(result.getQueries(), BranchAutoSuggestIndex.WEIGHT_HINT);
+                    }
+                    if (diskCache != null && diskCacheKey != null) {
+                        diskCache.put(diskCacheKey, result.getQueries());
+                    }
+                    if (callback != null && (race == null || race.onNetworkResult())) {
+                        callback.onBranchQueryHintResult(result);
                     }
                 }
             }
 
-        });
+        };
+        handler.executePost(BRANCH_QUERYHINT_URL, jsonPayload, events);
+        return events;
+    }
 
-        return true;
+    /**
+     * A disk cache lookup racing against the network request for the same query.
+     * The first answer is delivered and the other one is dropped, except for network errors:
+     * they wait for the disk lookup, since a stale entry is better than an error.
+     */
+    private static class DiskRace {
+        private boolean answered;
+        private boolean diskDone;
+        @Nullable private Runnable networkError;
+
+        /**
+         * Called on the cache thread when the disk has an entry.
+         * @return true if it should be delivered
+         */
+        synchronized boolean onDiskHit() {
+            diskDone = true;
+            networkError = null;
+            if (answered) return false;
+            answered = true;
+            return true;
+        }
+
+        /**
+         * Called on the cache thread when the disk has no entry. Delivers the network error
+         * on the UI thread if it was waiting for us.
+         */
+        void onDiskMiss() {
+            Runnable error;
+            synchronized (this) {
+                diskDone = true;
+                error = networkError;
+                networkError = null;
+                if (error != null) answered = true;
+            }
+            if (error != null) Util.runOnUiThread(error);
+        }
+
+        /**
+         * Called on the UI thread when the network has a result.
+         * @return true if it should be delivered
+         */
+        synchronized boolean onNetworkResult() {
+            if (answered) return false;
+            answered = true;
+            return true;
+        }
+
+        /**
+         * Called on the UI thread when the network failed. The error is delivered now,
+         * or once the disk lookup missed, or never if the disk has an entry.
+         * @param deliver delivers the error
+         */
+        void onNetworkError(@NonNull Runnable deliver) {
+            synchronized (this) {
+                if (answered) return;
+                if (!diskDone) {
+                    networkError = deliver;
+                    return;
+                }
+                answered = true;
+            }
+            deliver.run();
+        }
+    }
+
+    /**
+     * Opens a connection to the host of the given url, so that the next request can reuse it
+     * instead of paying for DNS, TCP and TLS setup. This is done with a HEAD request to the host
+     * root, whose response we ignore. The connection is then kept alive in the shared pool.
+     * Calls within {@link #PREWARM_INTERVAL_MILLIS} of each other are ignored.
+     * @param url a url
+     */
+    static void prewarm(@NonNull String url) {
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        if (httpUrl == null) return;
+        synchronized (BranchSearchInterface.class) {
+            long now = System.currentTimeMillis();
+            if (now < sLastPrewarmMillis + PREWARM_INTERVAL_MILLIS) return;
+            sLastPrewarmMillis = now;
+        }
+        Request request = new Request.Builder()
+                .url(httpUrl.newBuilder().encodedPath("/").build())
+                .head()
+                .build();
+        BranchHttpClient.getForApi().newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                // Allow a new attempt right away.
+                synchronized (BranchSearchInterface.class) {
+                    sLastPrewarmMillis = 0L;
+                }
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                response.close();
+            }
+        });
     }
 
     static void serviceEnabled(@NonNull String branchKey,
@@ -137,12 +506,14 @@ class BranchSearchInterface {
     }
 
     @NonNull
-    static JSONObject createPayload(@NonNull BranchDiscoveryRequest request,
-                                    @NonNull BranchConfiguration configuration,
-                                    @NonNull BranchDeviceInfo info) {
-        JSONObject jsonPayload = request.toJson();
-        info.addDeviceInfo(jsonPayload);
-        configuration.addConfigurationInfo(jsonPayload);
-        return jsonPayload;
+    static BranchPayload createPayload(@NonNull BranchDiscoveryRequest<?> request,
+                                       @NonNull BranchConfiguration configuration,
+                                       @NonNull BranchDeviceInfo info) {
+        boolean traced = BranchTrace.begin("BranchSearchInterface.createPayload");
+        try {
+            return BranchPayload.create(request, configuration, info);
+        } finally {
+            BranchTrace.end(traced);
+        }
     }
 }
@@ -121,6 +121,23 @@ public class BranchSearchRequest extends BranchDiscoveryRequest<BranchSearchRequ
         return query;
     }
 
+    int getMaxAppResults() {
+        return maxAppResults;
+    }
+
+    int getMaxContentPerAppResults() {
+        return maxContentPerAppResults;
+    }
+
+    @NonNull
+    BranchQuerySource getQuerySource() {
+        return querySource;
+    }
+
+    boolean isQueryModificationDisabled() {
+        return doNotModifyQuery;
+    }
+
     @NonNull
     @Override
     JSONObject toJson() {
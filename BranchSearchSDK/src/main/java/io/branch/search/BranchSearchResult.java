@@ -2,12 +2,16 @@ package io.branch.search;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.JsonReader;
+import android.util.JsonToken;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * Branch Search results.
@@ -23,9 +27,9 @@ public class BranchSearchResult {
     private final String correctedQuery;
     private final List<BranchAppResult> results;
 
-    private BranchSearchResult(@NonNull BranchSearchRequest query,
-                               @Nullable String correctedQuery,
-                               @NonNull List<BranchAppResult> results) {
+    BranchSearchResult(@NonNull BranchSearchRequest query,
+                       @Nullable String correctedQuery,
+                       @NonNull List<BranchAppResult> results) {
         this.query = query;
         this.correctedQuery = correctedQuery;
         this.results = results;
@@ -57,29 +61,154 @@ public class BranchSearchResult {
      * Parses a {@link BranchSearchResult} from JSON object.
      * @param query original query
      * @param json json object
+     * @param processor the processor for parsed apps
      * @return a result
+     * @throws IOException if interrupted while processing apps
      */
     @NonNull
     static BranchSearchResult createFromJson(@NonNull BranchSearchRequest query,
-                                             @NonNull JSONObject json) {
+                                             @NonNull JSONObject json,
+                                             @NonNull BranchResultProcessor processor)
+            throws IOException {
+        boolean traced = BranchTrace.begin("BranchSearchResult.createFromJson");
+        try {
+            return parse(query, json, processor);
+        } finally {
+            BranchTrace.end(traced);
+        }
+    }
+
+    @NonNull
+    private static BranchSearchResult parse(@NonNull BranchSearchRequest query,
+                                            @NonNull JSONObject json,
+                                            @NonNull BranchResultProcessor processor)
+            throws IOException {
         String correctedQuery = null;
         if (json.has(KEY_CORRECTED_QUERY)) {
             correctedQuery = json.optString(KEY_CORRECTED_QUERY);
         }
-        List<BranchAppResult> results = new ArrayList<>();
+        List<BranchAppResult.Raw> raws = new ArrayList<>();
         if (json.optBoolean(KEY_SUCCESS)) {
             JSONArray resultsJson = json.optJSONArray(KEY_RESULTS);
             if (resultsJson != null) {
                 for (int i = 0; i < resultsJson.length(); i++) {
                     JSONObject resultJson = resultsJson.optJSONObject(i);
                     if (resultJson == null) continue;
-                    BranchAppResult result = BranchAppResult.createFromJson(resultJson);
-                    if (result != null) {
-                        results.add(result);
-                    }
+                    raws.add(BranchAppResult.createFromJson(resultJson));
                 }
             }
         }
+        return new BranchSearchResult(query, correctedQuery, processor.processAll(raws));
+    }
+
+    /**
+     * Parses a {@link BranchSearchResult} from the given reader, which should be positioned
+     * before the response object. This has the same output as
+     * {@link #createFromJson(BranchSearchRequest, JSONObject, BranchResultProcessor)}, but apps
+     * and links are parsed as they are read from the network, without building the JSON tree
+     * first. Each app is handed to the processor as soon as it is parsed, so app checks run
+     * while the rest of the response is still being read.
+     * @param query original query
+     * @param reader a reader
+     * @param processor the processor for parsed apps
+     * @param listener if not null, receives each app as soon as it is processed
+     * @return a result
+     * @throws IOException if reading fails
+     */
+    @NonNull
+    static BranchSearchResult createFromJson(@NonNull BranchSearchRequest query,
+                                             @NonNull JsonReader reader,
+                                             @NonNull BranchResultProcessor processor,
+                                             @Nullable AppResultListener listener)
+            throws IOException {
+        boolean traced = BranchTrace.begin("BranchSearchResult.createFromJson");
+        try {
+            return parse(query, reader, processor, listener);
+        } finally {
+            BranchTrace.end(traced);
+        }
+    }
+
+    @NonNull
+    private static BranchSearchResult parse(@NonNull BranchSearchRequest query,
+                                            @NonNull JsonReader reader,
+                                            @NonNull BranchResultProcessor processor,
+                                            @Nullable AppResultListener listener)
+            throws IOException {
+        String correctedQuery = null;
+        boolean success = false;
+        List<Future<BranchAppResult>> pending = new ArrayList<>();
+        int collected = 0;
+        int published = 0;
+        List<BranchAppResult> results = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case KEY_CORRECTED_QUERY:
+                    correctedQuery = Util.nextString(reader, null);
+                    break;
+                case KEY_SUCCESS:
+                    success = Util.nextBoolean(reader);
+                    break;
+                case KEY_RESULTS:
+                    if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                        reader.skipValue();
+                        break;
+                    }
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                            reader.skipValue();
+                            continue;
+                        }
+                        pending.add(processor.submit(BranchAppResult.createFromJson(reader)));
+                        // Collect the apps that are already processed, without blocking.
+                        collected = collect(pending, collected, results, false);
+                        while (listener != null && success && published < results.size()) {
+                            listener.onAppResult(results.get(published), published++);
+                        }
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        collect(pending, collected, results, true);
+        // The success flag may come after the results. In this case they were not published yet.
+        if (!success) {
+            results.clear();
+        } else if (listener != null) {
+            for (int i = published; i < results.size(); i++) {
+                listener.onAppResult(results.get(i), i);
+            }
+        }
         return new BranchSearchResult(query, correctedQuery, results);
     }
-}
\ No newline at end of file
+
+    /**
+     * Moves processed apps from the futures into the results list, in order.
+     * @return the index of the first future that was not collected
+     */
+    private static int collect(@NonNull List<Future<BranchAppResult>> futures,
+                               int from,
+                               @NonNull List<BranchAppResult> into,
+                               boolean wait) throws IOException {
+        while (from < futures.size()) {
+            Future<BranchAppResult> future = futures.get(from);
+            if (!wait && !future.isDone()) break;
+            BranchAppResult result = BranchResultProcessor.get(future);
+            if (result != null) into.add(result);
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Receives app results while a response is being parsed.
+     */
+    interface AppResultListener {
+        void onAppResult(@NonNull BranchAppResult result, int index);
+    }
+}
@@ -0,0 +1,233 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The executor shared by all {@link URLConnectionNetworkHandler}s.
+ *
+ * Handlers only use it to build requests and cancel them (network I/O is done by OkHttp), so a
+ * couple of threads are enough for the whole SDK. Work is queued in priority lanes, see
+ * {@link Lane}: when threads are busy, a search request goes before a pending autosuggest,
+ * which goes before a query hint, and so on. Within a lane, work runs in submission order.
+ *
+ * Unlike {@link BranchExecutor}, queues are bounded. When a lane already holds
+ * {@link #LANE_CAPACITY} items that implement {@link Droppable}, the oldest one is evicted to
+ * make room for the new one: channels are "latest wins", so the oldest request has already
+ * been replaced by a newer one. Droppable work is also dropped when it waited in the queue for
+ * longer than {@link #MAX_WAIT_MILLIS}, in which case it would have timed out anyway. Other
+ * work (like cancellations) is never dropped.
+ */
+class BranchSharedExecutor {
+
+    /**
+     * Priority lanes, from the highest priority to the lowest.
+     */
+    enum Lane { SEARCH, AUTOSUGGEST, QUERYHINT, CLICK, SERVICE_ENABLED }
+
+    /**
+     * Work that wants to be notified when it is dropped.
+     */
+    interface Droppable {
+        /**
+         * Called instead of {@link Runnable#run()} when the work is dropped.
+         * @param expired true if the work waited for too long, false if its lane was full
+         */
+        void onDropped(boolean expired);
+    }
+
+    private static final int POOL_SIZE = 2;
+    private static final int LANE_CAPACITY = 4;
+    private static final long MAX_WAIT_MILLIS = BranchHttpClient.CALL_TIMEOUT_MILLIS;
+    private static final long KEEP_ALIVE_SECONDS = 5L;
+
+    private static BranchSharedExecutor sInstance;
+
+    private final ThreadPoolExecutor executor;
+    // Droppable tasks waiting in each lane, oldest first. Guarded by itself.
+    private final ArrayDeque<LaneTask>[] queued;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * @return the shared instance
+     */
+    @NonNull
+    static synchronized BranchSharedExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new BranchSharedExecutor();
+        }
+        return sInstance;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private BranchSharedExecutor() {
+        queued = new ArrayDeque[Lane.values().length];
+        for (int i = 0; i < queued.length; i++) {
+            queued[i] = new ArrayDeque<>(LANE_CAPACITY);
+        }
+        executor = new ThreadPoolExecutor(
+                POOL_SIZE,
+                POOL_SIZE,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                // Only holds LaneTasks, ordered by lane and then by submission.
+                new PriorityBlockingQueue<Runnable>(),
+                BranchExecutor.FACTORY
+        );
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns an {@link Executor} that submits work to the given lane.
+     * @param lane a lane
+     * @return an executor
+     */
+    @NonNull
+    Executor forLane(@NonNull final Lane lane) {
+        return new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                BranchSharedExecutor.this.execute(lane, command);
+            }
+        };
+    }
+
+    /**
+     * Returns an {@link Executor} that submits work to the given lane, one task at a time:
+     * tasks run in submission order and never concurrently, like on a single thread.
+     * @param lane a lane
+     * @return an executor
+     */
+    @NonNull
+    Executor serialForLane(@NonNull Lane lane) {
+        return new SerialExecutor(lane);
+    }
+
+    /**
+     * Submits work to the given lane.
+     * @param lane a lane
+     * @param command the work
+     */
+    void execute(@NonNull Lane lane, @NonNull Runnable command) {
+        boolean droppable = command instanceof Droppable;
+        LaneTask task = new LaneTask(lane, sequence.getAndIncrement(), command, droppable);
+        LaneTask evicted = null;
+        if (droppable) {
+            ArrayDeque<LaneTask> tasks = queued[lane.ordinal()];
+            synchronized (tasks) {
+                if (tasks.size() >= LANE_CAPACITY) {
+                    evicted = tasks.pollFirst();
+                }
+                tasks.addLast(task);
+            }
+        }
+        // If a thread already took the evicted task, it runs as usual.
+        if (evicted != null && executor.remove(evicted)) {
+            drop((Droppable) evicted.command, false);
+        }
+        executor.execute(task);
+    }
+
+    private void drop(@NonNull Droppable command, boolean expired) {
+        droppedCount.incrementAndGet();
+        BranchMetrics.count(IBranchMetricsListener.Counter.REQUEST_DROPPED);
+        command.onDropped(expired);
+    }
+
+    /**
+     * @return the number of threads that are currently alive
+     */
+    int getThreadCount() {
+        return executor.getPoolSize();
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread
+     */
+    int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of tasks that were dropped, because newer tasks replaced them or
+     * because they waited for too long
+     */
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    private class SerialExecutor implements Executor {
+        private final Lane lane;
+        // Guarded by this.
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private Runnable active;
+
+        private SerialExecutor(@NonNull Lane lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public synchronized void execute(@NonNull final Runnable command) {
+            tasks.addLast(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        command.run();
+                    } finally {
+                        next();
+                    }
+                }
+            });
+            if (active == null) next();
+        }
+
+        private synchronized void next() {
+            active = tasks.pollFirst();
+            if (active != null) BranchSharedExecutor.this.execute(lane, active);
+        }
+    }
+
+    private class LaneTask implements Runnable, Comparable<LaneTask> {
+        private final Lane lane;
+        private final long sequence;
+        private final Runnable command;
+        private final boolean droppable;
+        private final long createdMillis = System.currentTimeMillis();
+
+        private LaneTask(@NonNull Lane lane, long sequence,
+                         @NonNull Runnable command, boolean droppable) {
+            this.lane = lane;
+            this.sequence = sequence;
+            this.command = command;
+            this.droppable = droppable;
+        }
+
+        @Override
+        public void run() {
+            if (droppable) {
+                ArrayDeque<LaneTask> tasks = queued[lane.ordinal()];
+                synchronized (tasks) {
+                    tasks.remove(this);
+                }
+                if (System.currentTimeMillis() > createdMillis + MAX_WAIT_MILLIS) {
+                    drop((Droppable) command, true);
+                    return;
+                }
+            }
+            command.run();
+        }
+
+        @Override
+        public int compareTo(@NonNull LaneTask other) {
+            if (lane != other.lane) return lane.ordinal() - other.lane.ordinal();
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
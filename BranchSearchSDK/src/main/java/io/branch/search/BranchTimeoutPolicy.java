@@ -0,0 +1,250 @@
+package io.branch.search;
+
+import android.Manifest;
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Random;
+
+/**
+ * Adaptive timeouts for the requests of a channel.
+ *
+ * Each call gets a deadline for its response headers, computed from the round trip times
+ * measured on the same channel and the same kind of network (Wi-Fi or cellular), the same way
+ * TCP computes its retransmission timeout: we keep an EWMA of the round trip time and of its
+ * mean deviation, and mean + 4 deviations estimates a high percentile. The deadline is twice
+ * that estimate, within the channel bounds: autosuggest fails fast, while search keeps more
+ * budget. A call that misses its deadline is recorded with it, so the estimate grows when the
+ * network gets slower.
+ *
+ * Round trip times are measured up to the response headers, so the deadline only covers that
+ * part of the call. Reading and parsing the body is bounded by {@link #getCallTimeoutMillis()}.
+ *
+ * Until a network type has enough samples, the channel default is used.
+ *
+ * This also provides the backoff for GET retries, see {@link #getRetryDelayMillis(int)}.
+ */
+class BranchTimeoutPolicy {
+
+    private static final int NETWORK_UNKNOWN = 0;
+    private static final int NETWORK_WIFI = 1;
+    private static final int NETWORK_CELLULAR = 2;
+    private static final int NETWORK_TYPES = 3;
+
+    private static final int MIN_SAMPLES = 5;
+    private static final double ALPHA = 0.125; // Same gains as TCP, RFC 6298
+    private static final double BETA = 0.25;
+
+    static final int MAX_GET_RETRIES = 2;
+    private static final long RETRY_BASE_DELAY_MILLIS = 500;
+
+    private static volatile int sNetworkType = NETWORK_UNKNOWN;
+    private static boolean sMonitoring;
+    private static final Random sRandom = new Random();
+
+    private final long defaultTimeoutMillis;
+    private final long minTimeoutMillis;
+    private final long maxTimeoutMillis;
+    private final Estimator[] estimators = new Estimator[NETWORK_TYPES];
+
+    private static class Estimator {
+        private double mean;
+        private double deviation;
+        private int samples;
+    }
+
+    @NonNull
+    static BranchTimeoutPolicy forSearch() {
+        return new BranchTimeoutPolicy(6000, 3000, 10000);
+    }
+
+    @NonNull
+    static BranchTimeoutPolicy forAutoSuggest() {
+        return new BranchTimeoutPolicy(3000, 1000, 3000);
+    }
+
+    @NonNull
+    static BranchTimeoutPolicy forQueryHint() {
+        return new BranchTimeoutPolicy(6000, 2000, 6000);
+    }
+
+    @NonNull
+    static BranchTimeoutPolicy forGet() {
+        return new BranchTimeoutPolicy(6000, 2000, 6000);
+    }
+
+    private BranchTimeoutPolicy(long defaultTimeoutMillis,
+                                long minTimeoutMillis,
+                                long maxTimeoutMillis) {
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+        this.minTimeoutMillis = minTimeoutMillis;
+        this.maxTimeoutMillis = maxTimeoutMillis;
+        for (int i = 0; i < NETWORK_TYPES; i++) {
+            estimators[i] = new Estimator();
+        }
+    }
+
+    /**
+     * @return the deadline for the response headers of a new call on the current network
+     */
+    long getTimeoutMillis() {
+        Estimator estimator = estimators[sNetworkType];
+        double estimate;
+        synchronized (estimator) {
+            if (estimator.samples < MIN_SAMPLES) return defaultTimeoutMillis;
+            estimate = estimator.mean + 4 * estimator.deviation;
+        }
+        return Math.max(minTimeoutMillis, Math.min(maxTimeoutMillis, (long) (2 * estimate)));
+    }
+
+    /**
+     * @return the timeout for a whole call, including the response body
+     */
+    long getCallTimeoutMillis() {
+        return Math.max(maxTimeoutMillis, BranchHttpClient.CALL_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Records the round trip time of a call, or its deadline if it missed it.
+     * @param rttMillis the round trip time
+     */
+    void record(long rttMillis) {
+        Estimator estimator = estimators[sNetworkType];
+        synchronized (estimator) {
+            if (estimator.samples == 0) {
+                estimator.mean = rttMillis;
+                estimator.deviation = rttMillis / 2.0;
+            } else {
+                estimator.deviation = (1 - BETA) * estimator.deviation
+                        + BETA * Math.abs(estimator.mean - rttMillis);
+                estimator.mean = (1 - ALPHA) * estimator.mean + ALPHA * rttMillis;
+            }
+            estimator.samples++;
+        }
+    }
+
+    /**
+     * Returns how long to wait before retrying a GET request, with exponential backoff and
+     * jitter, so that clients do not retry in lockstep after a server hiccup.
+     * @param attempt the number of retries so far
+     * @return the delay
+     */
+    static long getRetryDelayMillis(int attempt) {
+        long max = RETRY_BASE_DELAY_MILLIS << attempt;
+        synchronized (sRandom) {
+            return max / 2 + (long) (sRandom.nextDouble() * max / 2);
+        }
+    }
+
+    /**
+     * Starts tracking the current network type.
+     * @param context a context
+     */
+    static synchronized void startMonitoring(@NonNull Context context) {
+        if (sMonitoring) return;
+        sMonitoring = true;
+        final Context appContext = context.getApplicationContext();
+        // The default network callback needs a permission that we don't require.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && appContext.checkCallingOrSelfPermission(
+                Manifest.permission.ACCESS_NETWORK_STATE) == PackageManager.PERMISSION_GRANTED) {
+            try {
+                startNetworkCallback(appContext);
+                return;
+            } catch (Exception ignore) { }
+        }
+        startLegacyMonitoring(appContext);
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private static void startNetworkCallback(@NonNull Context context) {
+        final ConnectivityManager manager = (ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        //noinspection ConstantConditions
+        manager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                // Before API 26, onCapabilitiesChanged is not called right away.
+                sNetworkType = getNetworkType(manager.getNetworkCapabilities(network));
+            }
+
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                sNetworkType = getNetworkType(capabilities);
+            }
+
+            @Override
+            public void onLost(Network network) {
+                sNetworkType = NETWORK_UNKNOWN;
+            }
+        });
+    }
+
+    private static int getNetworkType(@Nullable NetworkCapabilities capabilities) {
+        if (capabilities == null) {
+            return NETWORK_UNKNOWN;
+        } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)
+                || capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+            return NETWORK_WIFI;
+        } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            return NETWORK_CELLULAR;
+        } else {
+            return NETWORK_UNKNOWN;
+        }
+    }
+
+    /**
+     * Tracks the network type through the connectivity broadcast, which is deprecated but is
+     * all we have before API 24, or without the network state permission.
+     */
+    @SuppressWarnings("deprecation")
+    private static void startLegacyMonitoring(@NonNull final Context context) {
+        // The sticky broadcast is delivered right away, which gives us the initial type.
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context receiverContext, Intent intent) {
+                sNetworkType = getNetworkType(context, intent);
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    @SuppressWarnings("deprecation")
+    private static int getNetworkType(@NonNull Context context, @NonNull Intent intent) {
+        if (intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+            return NETWORK_UNKNOWN;
+        }
+        int type = -1;
+        // The active network needs a permission that we don't require. Without it,
+        // use the network from the broadcast, which is right most of the time.
+        if (context.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE)
+                == PackageManager.PERMISSION_GRANTED) {
+            try {
+                ConnectivityManager manager = (ConnectivityManager)
+                        context.getSystemService(Context.CONNECTIVITY_SERVICE);
+                //noinspection ConstantConditions
+                android.net.NetworkInfo info = manager.getActiveNetworkInfo();
+                if (info != null) type = info.getType();
+            } catch (Exception ignore) { }
+        } else {
+            type = intent.getIntExtra(ConnectivityManager.EXTRA_NETWORK_TYPE, -1);
+        }
+        switch (type) {
+            case ConnectivityManager.TYPE_WIFI:
+            case ConnectivityManager.TYPE_ETHERNET:
+                return NETWORK_WIFI;
+            case ConnectivityManager.TYPE_MOBILE:
+                return NETWORK_CELLULAR;
+            default:
+                return NETWORK_UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package io.branch.search;
+
+import android.os.Build;
+import android.os.Trace;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Systrace / Perfetto sections for the SDK hot paths.
+ *
+ * Tracing is off by default and can be switched at any time with
+ * {@link BranchSearch#setTracingEnabled(boolean)}, so that it can be used in production builds.
+ * Since the switch can flip while a section is open, {@link #begin(String)} returns whether
+ * the section was actually started, and that value must be passed to {@link #end(boolean)}:
+ *
+ * <pre>
+ * boolean traced = BranchTrace.begin("Name");
+ * try {
+ *     ...
+ * } finally {
+ *     BranchTrace.end(traced);
+ * }
+ * </pre>
+ *
+ * Sections need API 18. Requests also get an async section, which links the work done for
+ * a request on different threads through its cookie. Async sections need API 29.
+ */
+class BranchTrace {
+
+    private static volatile boolean sEnabled = false;
+    private static final AtomicInteger sCookies = new AtomicInteger();
+
+    /**
+     * @param enabled true to emit trace sections
+     */
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * @return true if sections are emitted
+     */
+    static boolean isEnabled() {
+        return sEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    /**
+     * Begins a section on the current thread, if enabled.
+     * @param name the section name
+     * @return the value for {@link #end(boolean)}
+     */
+    static boolean begin(@NonNull String name) {
+        if (!isEnabled()) return false;
+        Trace.beginSection(name);
+        return true;
+    }
+
+    /**
+     * Ends the section started by {@link #begin(String)} on the same thread.
+     * @param begun the value returned by {@link #begin(String)}
+     */
+    static void end(boolean begun) {
+        if (begun && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Begins an async section, if enabled. It can be ended on any thread.
+     * @param name the section name
+     * @return the cookie for {@link #endAsync(String, int)}, or 0 if not started
+     */
+    static int beginAsync(@NonNull String name) {
+        if (!sEnabled || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return 0;
+        int cookie = sCookies.incrementAndGet();
+        if (cookie == 0) cookie = sCookies.incrementAndGet();
+        Trace.beginAsyncSection(name, cookie);
+        return cookie;
+    }
+
+    /**
+     * Ends the async section started by {@link #beginAsync(String)}.
+     * @param name the section name
+     * @param cookie the value returned by {@link #beginAsync(String)}
+     */
+    static void endAsync(@NonNull String name, int cookie) {
+        if (cookie != 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(name, cookie);
+        }
+    }
+}
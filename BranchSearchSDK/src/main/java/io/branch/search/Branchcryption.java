@@ -3,10 +3,21 @@ package io.branch.search;
 import android.support.annotation.NonNull;
 import android.util.Base64;
 
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * Payload encryption for the search, hint and autosuggest channels.
+ *
+ * Looking up a {@link Cipher} goes through the security providers and is expensive, so each
+ * thread keeps its own instances and simply re-initializes them with the new IV. A Cipher is not
+ * thread safe, hence the {@link ThreadLocal}. The key is encoded once.
+ */
 class Branchcryption {
     private static final String utf8 = "utf-8";// getBytes() output depends on the system defaults. Use getBytes(\"utf-8\") - https://stackoverflow.com/a/30383887
 
@@ -23,21 +34,103 @@ class Branchcryption {
     private static final String algorithm = "AES";
     private static final String key = "";
 
+    private static volatile SecretKeySpec skeySpec;
+    private static final ThreadLocal<Cipher> encryptionCiphers = new ThreadLocal<>();
+    private static final ThreadLocal<Cipher> decryptionCiphers = new ThreadLocal<>();
+
     public static String encrypt(@NonNull String textToEncrypt, @NonNull String iv) throws Exception {
-        SecretKeySpec skeySpec = new SecretKeySpec(key.getBytes(utf8), algorithm);
-        Cipher cipher = Cipher.getInstance(encryptionCipher);
-        cipher.init(Cipher.ENCRYPT_MODE, skeySpec, new IvParameterSpec(iv.getBytes(utf8)));
-        byte[] encrypted = cipher.doFinal(textToEncrypt.getBytes(utf8));
+        byte[] encrypted = encrypt(textToEncrypt.getBytes(utf8), iv);
         return Base64.encodeToString(encrypted, Base64.DEFAULT);
     }
 
     public static String decrypt(String textToDecrypt, @NonNull String iv) throws Exception {
-        byte[] encryted_bytes = Base64.decode(textToDecrypt, Base64.DEFAULT);
-        SecretKeySpec skeySpec = new SecretKeySpec(key.getBytes(utf8), algorithm);
-        Cipher cipher = Cipher.getInstance(decryptionCipher);
-        cipher.init(Cipher.DECRYPT_MODE, skeySpec, new IvParameterSpec(iv.getBytes(utf8)));
-        byte[] decrypted = cipher.doFinal(encryted_bytes);
-        return new String(decrypted, utf8);
+        return new String(decrypt(textToDecrypt, iv.getBytes(utf8)), utf8);
+    }
+
+    /**
+     * Encrypts the given bytes.
+     * @param bytes plain text bytes
+     * @param iv the IV
+     * @return the encrypted bytes, not encoded
+     * @throws GeneralSecurityException if encryption fails
+     */
+    @NonNull
+    static byte[] encrypt(@NonNull byte[] bytes, @NonNull String iv) throws GeneralSecurityException {
+        boolean traced = BranchTrace.begin("Branchcryption.encrypt");
+        try {
+            return getEncryptionCipher(iv).doFinal(bytes);
+        } finally {
+            BranchTrace.end(traced);
+        }
     }
 
-}
\ No newline at end of file
+    /**
+     * Decrypts the given Base64 text.
+     * @param textToDecrypt Base64 encoded text
+     * @param iv the IV bytes
+     * @return the decrypted bytes, which may include trailing padding
+     * @throws GeneralSecurityException if decryption fails
+     */
+    @NonNull
+    static byte[] decrypt(@NonNull String textToDecrypt, @NonNull byte[] iv) throws GeneralSecurityException {
+        boolean traced = BranchTrace.begin("Branchcryption.decrypt");
+        try {
+            byte[] encryted_bytes = Base64.decode(textToDecrypt, Base64.DEFAULT);
+            Cipher cipher = getCipher(decryptionCiphers, decryptionCipher);
+            cipher.init(Cipher.DECRYPT_MODE, getKey(), new IvParameterSpec(iv));
+            return cipher.doFinal(encryted_bytes);
+        } finally {
+            BranchTrace.end(traced);
+        }
+    }
+
+    /**
+     * Returns this thread's encryption cipher, initialized with the given IV.
+     * The cipher should be used before calling any other method of this class.
+     * @param iv the IV
+     * @return a cipher
+     * @throws GeneralSecurityException if initialization fails
+     */
+    @NonNull
+    static Cipher getEncryptionCipher(@NonNull String iv) throws GeneralSecurityException {
+        Cipher cipher = getCipher(encryptionCiphers, encryptionCipher);
+        cipher.init(Cipher.ENCRYPT_MODE, getKey(), new IvParameterSpec(getBytes(iv)));
+        return cipher;
+    }
+
+    @NonNull
+    private static SecretKeySpec getKey() throws GeneralSecurityException {
+        SecretKeySpec spec = skeySpec;
+        if (spec == null) {
+            try {
+                spec = new SecretKeySpec(getBytes(key), algorithm);
+            } catch (IllegalArgumentException e) {
+                // Empty key. Callers will fall back to plain text.
+                throw new InvalidKeyException(e.getMessage());
+            }
+            skeySpec = spec;
+        }
+        return spec;
+    }
+
+    @NonNull
+    private static Cipher getCipher(@NonNull ThreadLocal<Cipher> ciphers,
+                                    @NonNull String transformation) throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            ciphers.set(cipher);
+        }
+        return cipher;
+    }
+
+    @NonNull
+    private static byte[] getBytes(@NonNull String text) {
+        try {
+            return text.getBytes(utf8);
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Receives metrics about the requests made by the SDK.
+ * See {@link BranchConfiguration#setMetricsListener(IBranchMetricsListener)}.
+ *
+ * Methods are called on SDK threads and should return quickly.
+ */
+public interface IBranchMetricsListener {
+
+    /**
+     * Events counted by the SDK.
+     */
+    enum Counter {
+        /** A request was canceled, usually because a newer request replaced it. */
+        REQUEST_CANCELED,
+        /** A debounced request was replaced by a newer request before reaching the network. */
+        REQUEST_COALESCED,
+        /** A request was dropped by the executor because its queue was full or too old. */
+        REQUEST_DROPPED,
+        /** A GET request was retried after a failure. */
+        REQUEST_RETRIED,
+        /** A duplicate call was sent for a slow search request. */
+        REQUEST_HEDGED,
+        /** A search request was served by the in-memory result cache. */
+        CACHE_HIT,
+        /** An autosuggest or query hint request was served by the disk cache. */
+        DISK_CACHE_HIT
+    }
+
+    /**
+     * Called on the UI thread when a request result was delivered, including errors.
+     * @param timeline the timeline of the request
+     */
+    void onRequestCompleted(@NonNull BranchRequestTimeline timeline);
+
+    /**
+     * Called on any thread when an event is counted.
+     * @param counter the counter to increment
+     */
+    void onCounter(@NonNull Counter counter);
+}
@@ -0,0 +1,27 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Callback for Search API events that also receives each {@link BranchAppResult} as soon as
+ * it is parsed, while the rest of the response is still being downloaded. Can be passed to
+ * {@link BranchSearch#query(BranchSearchRequest, IBranchSearchEvents)} instead of a plain
+ * {@link IBranchSearchEvents}.
+ *
+ * All callbacks are invoked on the UI thread. Apps are delivered in order, and once all of
+ * them have been delivered, {@link #onBranchSearchResult(BranchSearchResult)} is called with
+ * the complete result. If the request fails or is canceled midway,
+ * {@link #onBranchSearchError(BranchSearchError)} is called instead and no more apps are
+ * delivered.
+ *
+ * Note that encrypted responses can't be parsed before they are fully downloaded, so in that
+ * case apps will be delivered in a quick sequence.
+ */
+public interface IBranchSearchStreamEvents extends IBranchSearchEvents {
+    /**
+     * Called when an app result has been parsed.
+     * @param result {@link BranchAppResult} object
+     * @param index the position of this app in the final {@link BranchSearchResult#getResults()}
+     */
+    void onBranchAppResult(@NonNull BranchAppResult result, int index);
+}
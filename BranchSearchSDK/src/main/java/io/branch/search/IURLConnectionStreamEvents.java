@@ -0,0 +1,42 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+import android.util.JsonReader;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * URLConnection Event Interface for callbacks that parse the response body themselves.
+ *
+ * Successful (200) responses are not turned into a {@link org.json.JSONObject}. Instead,
+ * {@link #onParse(JsonReader, Executor)} reads the body as it comes from the network, on the
+ * network thread, and its output is delivered to {@link #onParsedResult(Object)} on the
+ * UI thread. Errors are still delivered to {@link #onResult(org.json.JSONObject)}.
+ *
+ * Partial results can be published while parsing through the progress executor, which runs
+ * its tasks on the UI thread, unless the request was canceled or has completed.
+ *
+ * @param <T> the parsed type
+ */
+interface IURLConnectionStreamEvents<T> extends IURLConnectionEvents {
+
+    /**
+     * Parses the response body. Malformed or unexpected JSON should be surfaced as an
+     * exception, which results in a {@link BranchSearchError.ERR_CODE#INTERNAL_SERVER_ERR}.
+     * @param reader a reader over the response body
+     * @param progress an executor for publishing partial results
+     * @return the parsed object
+     * @throws IOException if reading fails
+     */
+    @WorkerThread
+    @NonNull
+    T onParse(@NonNull JsonReader reader, @NonNull Executor progress) throws IOException;
+
+    /**
+     * Receives the output of {@link #onParse(JsonReader, Executor)}, on the UI thread.
+     * @param result the parsed object
+     */
+    void onParsedResult(@NonNull T result);
+}
@@ -4,65 +4,218 @@ import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import org.json.JSONObject;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * URLConnection Network Handler.
  *
- * This class uses a {@link BranchExecutor} to schedule (through Android AsyncTasks) network
- * requests.
+ * This class uses the {@link BranchSharedExecutor} to schedule network requests. The executor is only
+ * used to build requests (which includes encryption) and cancel them: the network I/O itself is
+ * handed to the OkHttp dispatcher by {@link URLConnectionTask}, so executor threads are never
+ * parked on a socket.
  *
  * As new requests are coming, the policy in this class is to schedule the new request, and then
  * cancel any pending request for the same type. Canceling pending requests is:
  *
- * - expensive - if the task is in the middle of network I/O, canceling can take time
  * - important - if we don't, we allow multiple requests of the same time, and this means
  *   we can't guarantee that the result callback is called in the correct order and this can
  *   cause UI issues.
- * - delicate in that we must ensure that it's not called on an UI thread.
+ * - delicate in that we must ensure that it's not called on an UI thread, since OkHttp might
+ *   have to close a socket.
  *
- * For this reason we do cancel running tasks but use the same {@link BranchExecutor} to schedule
- * the cancel operations. The cancel op. will free up a running thread for future requests.
+ * For this reason we use the same executor to schedule the cancel operations
+ * when called on the UI thread.
  *
- * Each POST or GET request can trigger 2 (short-lived) thread requests.
- * The {@link BranchExecutor} pool size is set here to 6, which is just a maximum limit.
- * These threads are cached and only instantiated when needed.
+ * The executor is shared by all handlers and has a small, bounded pool. Each handler submits
+ * its work to the priority lanes it was created with, one for POST and one for GET requests,
+ * so that for example search requests are built before click tracking requests.
  *
- * If we happen to need more than 6 threads at the same time, requests are enqueued by
- * {@link BranchExecutor} and will wait for currently running ops to finish, which would have
- * an impact on latency. But hopefully this should not happen too often, and some of these busy
- * threads will always be cancel requests that are executed much faster than network request.
+ * For channels that receive bursts of requests (e.g. one autosuggest per keystroke), a debounce
+ * window can be set with {@link #setDebounce(long)}. POST requests are then held for that window
+ * and a new request replaces the held one ("latest wins"), so only the last request of a burst
+ * reaches the network. Replaced requests receive {@link BranchSearchError.ERR_CODE#REQUEST_CANCELED}
+ * and are counted in {@link #getCoalescedCount()}.
+ *
+ * Calls get adaptive timeouts from the {@link BranchTimeoutPolicy} of the handler channel.
+ * POST requests can also be hedged, see {@link #setHedging(BranchHedgingPolicy)}.
  */
 class URLConnectionNetworkHandler {
 
-    private final BranchExecutor executor = new BranchExecutor(6);
+    private final Executor postExecutor;
+    private final Executor getExecutor;
+    private final BranchTimeoutPolicy timeouts;
+    private final BranchLatencyRecorder latency = new BranchLatencyRecorder();
     private final Object lock = new Object();
 
     private URLConnectionTask postTask;
+    @Nullable private IURLConnectionEvents postCallback;
     private URLConnectionTask getTask;
 
+    private long debounceMillis = 0L;
+    @Nullable private BranchHedgingPolicy hedging;
+    private PendingPost pendingPost;
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    private static class PendingPost {
+        private final String url;
+        private final BranchPayload payload;
+        private final IURLConnectionEvents callback;
+
+        private PendingPost(@NonNull String url,
+                            @NonNull BranchPayload payload,
+                            @Nullable IURLConnectionEvents callback) {
+            this.url = url;
+            this.payload = payload;
+            this.callback = callback;
+        }
+    }
+
+    private final Runnable dispatchPendingPost = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (lock) {
+                PendingPost pending = pendingPost;
+                pendingPost = null;
+                if (pending != null) {
+                    startPost(pending.url, pending.payload, pending.callback);
+                }
+            }
+        }
+    };
+
+    private URLConnectionNetworkHandler(@NonNull BranchSharedExecutor.Lane postLane,
+                                        @NonNull BranchSharedExecutor.Lane getLane,
+                                        @NonNull BranchTimeoutPolicy timeouts) {
+        this.timeouts = timeouts;
+        BranchSharedExecutor executor = BranchSharedExecutor.getInstance();
+        postExecutor = executor.forLane(postLane);
+        getExecutor = executor.forLane(getLane);
+    }
+
+    /**
+     * Sets the debounce window for POST requests.
+     * @param debounceMillis the window, or 0 to send requests immediately
+     */
+    void setDebounce(long debounceMillis) {
+        this.debounceMillis = debounceMillis;
+    }
+
+    /**
+     * Enables hedging for POST requests.
+     * @param hedging the policy, or null to disable hedging
+     */
+    void setHedging(@Nullable BranchHedgingPolicy hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * @return the round trip times of this channel
+     */
+    @NonNull
+    BranchLatencyRecorder getLatencyRecorder() {
+        return latency;
+    }
+
+    /**
+     * @return the number of POST requests that were replaced by a newer request
+     * before reaching the network
+     */
+    long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
     void executePost(@NonNull String url,
-                     @NonNull JSONObject payload,
+                     @NonNull BranchPayload payload,
                      @Nullable IURLConnectionEvents callback) {
         synchronized (lock) {
-            final URLConnectionTask oldTask = postTask;
-            postTask = URLConnectionTask.forPost(url, payload, callback);
-            postTask.executeOnExecutor(executor);
-            cancelTask(oldTask);
+            if (debounceMillis <= 0) {
+                startPost(url, payload, callback);
+                return;
+            }
+            // A running request is outdated as well, cancel it right away so it does not
+            // deliver results for an older query while we wait.
+            cancelTask(postTask, postExecutor);
+            postTask = null;
+            if (pendingPost != null) {
+                coalescedCount.incrementAndGet();
+                BranchMetrics.count(IBranchMetricsListener.Counter.REQUEST_COALESCED);
+                dispatchCanceled(pendingPost.callback);
+            }
+            pendingPost = new PendingPost(url, payload, callback);
+            Util.removeFromUiThread(dispatchPendingPost);
+            Util.runOnUiThread(dispatchPendingPost, debounceMillis);
         }
     }
 
+    // Must be called while holding the lock.
+    private void startPost(@NonNull String url,
+                           @NonNull BranchPayload payload,
+                           @Nullable IURLConnectionEvents callback) {
+        final URLConnectionTask oldTask = postTask;
+        postTask = URLConnectionTask.forPost(url, payload, callback, latency);
+        postCallback = callback;
+        postTask.setHedging(hedging);
+        postTask.setTimeoutPolicy(timeouts);
+        postTask.executeOnExecutor(postExecutor);
+        cancelTask(oldTask, postExecutor);
+    }
+
+    private static void dispatchCanceled(@Nullable final IURLConnectionEvents callback) {
+        if (callback == null) return;
+        Util.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResult(new BranchSearchError(BranchSearchError.ERR_CODE.REQUEST_CANCELED));
+            }
+        });
+    }
+
     void executeGet(@NonNull String url,
                     @Nullable IURLConnectionEvents callback) {
         synchronized (lock) {
             final URLConnectionTask oldTask = getTask;
-            getTask = URLConnectionTask.forGet(url, callback);
-            getTask.executeOnExecutor(executor);
-            cancelTask(oldTask);
+            getTask = URLConnectionTask.forGet(url, callback, latency);
+            getTask.setTimeoutPolicy(timeouts);
+            getTask.executeOnExecutor(getExecutor);
+            cancelTask(oldTask, getExecutor);
+        }
+    }
+
+    /**
+     * Cancels the pending POST request, if any. This is useful when the request
+     * was served by other means and we don't want the pending one to deliver
+     * a stale result afterwards.
+     */
+    void cancelPost() {
+        synchronized (lock) {
+            final URLConnectionTask oldTask = postTask;
+            postTask = null;
+            cancelTask(oldTask, postExecutor);
+            if (pendingPost != null) {
+                Util.removeFromUiThread(dispatchPendingPost);
+                dispatchCanceled(pendingPost.callback);
+                pendingPost = null;
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #cancelPost()}, but only if the pending POST request was made with the
+     * given callback. A newer request, which replaced it in the meantime, is not affected.
+     * @param callback the callback of the request to cancel
+     */
+    void cancelPost(@NonNull IURLConnectionEvents callback) {
+        synchronized (lock) {
+            if (pendingPost != null ? pendingPost.callback == callback
+                    : postTask != null && postCallback == callback) {
+                cancelPost();
+            }
         }
     }
 
-    private void cancelTask(final @Nullable URLConnectionTask task) {
+    private static void cancelTask(final @Nullable URLConnectionTask task,
+                                   @NonNull Executor executor) {
         if (task == null) return;
         boolean isUiThread = Thread.currentThread() == Looper.getMainLooper().getThread();
         // If we're on the UI thread, we can't / shouldn't cancel a network op on the UI thread.
@@ -81,11 +234,16 @@ class URLConnectionNetworkHandler {
 
     /**
      * Create an instance of the NetworkHandler.
+     * @param postLane the executor lane for POST requests
+     * @param getLane the executor lane for GET requests
+     * @param timeouts the timeout policy of this channel
      * @return a new URLConnectionNetworkHandler
      */
     @NonNull
-    static URLConnectionNetworkHandler initialize() {
-        return new URLConnectionNetworkHandler();
+    static URLConnectionNetworkHandler initialize(@NonNull BranchSharedExecutor.Lane postLane,
+                                                  @NonNull BranchSharedExecutor.Lane getLane,
+                                                  @NonNull BranchTimeoutPolicy timeouts) {
+        return new URLConnectionNetworkHandler(postLane, getLane, timeouts);
     }
 
 }
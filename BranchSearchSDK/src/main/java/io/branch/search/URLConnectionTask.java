@@ -1,28 +1,32 @@
 package io.branch.search;
 
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.annotation.WorkerThread;
+import android.util.JsonReader;
 import android.util.Log;
+import android.util.MalformedJsonException;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.security.SecureRandom;
 import java.util.Locale;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
@@ -30,39 +34,55 @@ import okhttp3.internal.http2.StreamResetException;
 
 /**
  * URLConnection Task.
+ *
+ * The task builds its request (which includes payload encryption) when run by an executor,
+ * then hands it to OkHttp through {@link Call#enqueue(Callback)}. This way executor threads are
+ * never parked on socket I/O. The response is parsed on the OkHttp dispatcher thread, which is
+ * shared by all tasks, and the callback is invoked on the UI thread.
+ *
+ * If the callback is a {@link IURLConnectionStreamEvents}, successful responses are parsed
+ * by the callback itself while they are read from the network.
+ *
+ * Each call gets a deadline for its response headers from the {@link BranchTimeoutPolicy} of its
+ * channel, matching the round trip times that it measures. GET requests,
+ * which are idempotent, are retried on network failures and server errors with jittered backoff.
+ *
+ * With a {@link BranchHedgingPolicy}, a duplicate call is sent if the first one is slow.
+ * Both calls share this task: the first response wins and the other call is canceled.
+ * A failure is only reported when both calls failed.
+ *
+ * If the executor drops the task before it runs, see {@link BranchSharedExecutor}, the callback
+ * receives a {@link BranchSearchError.ERR_CODE#REQUEST_TIMED_OUT_ERR} or
+ * {@link BranchSearchError.ERR_CODE#REQUEST_CANCELED} error.
+ *
+ * When metrics are enabled, the task fills a {@link BranchRequestTimeline} and reports it
+ * once the result is delivered, see {@link BranchMetrics}. When tracing is enabled, each task
+ * is an async trace section from scheduling to delivery, see {@link BranchTrace}.
  */
-class URLConnectionTask extends AsyncTask<Void, Void, JSONObject> {
+class URLConnectionTask implements Runnable, Callback, BranchSharedExecutor.Droppable {
 
     private static final MediaType POST_JSON = MediaType.parse("application/json; charset=utf-8");
-    private static final long CONFIG_TIMEOUT_MILLIS = 6000;
-
-    @VisibleForTesting
-    static OkHttpClient sClient = new OkHttpClient.Builder()
-            .callTimeout(CONFIG_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
-            .retryOnConnectionFailure(true)
-            .build();
-
-    private static long sLastPostRTT = -1; // Last post request round trip time
-    private static long sLastGetRTT = -1; // Last get request round trip time
 
     /**
      * Creates a new task for a GET request.
      * @param url target url
      * @param callback callback
+     * @param latency the latency recorder of the channel
      * @return a new task
      */
     @NonNull
     static URLConnectionTask forGet(@NonNull String url,
-                                    @Nullable IURLConnectionEvents callback) {
-        if (sLastGetRTT >= 0) {
+                                    @Nullable IURLConnectionEvents callback,
+                                    @NonNull BranchLatencyRecorder latency) {
+        long lastRTT = latency.takeLast();
+        if (lastRTT >= 0) {
             url = Uri.parse(url)
                     .buildUpon()
-                    .appendQueryParameter("lr_rtt", String.valueOf(sLastGetRTT))
+                    .appendQueryParameter("lr_rtt", String.valueOf(lastRTT))
                     .build()
                     .toString();
-            sLastGetRTT = -1;
         }
-        return new URLConnectionTask(url, null, callback, false);
+        return new URLConnectionTask(url, null, callback, false, latency);
     }
 
     /**
@@ -70,92 +90,216 @@ class URLConnectionTask extends AsyncTask<Void, Void, JSONObject> {
      * @param url target url
      * @param params post params
      * @param callback callback
+     * @param latency the latency recorder of the channel
      * @return a new task
      */
     @NonNull
     static URLConnectionTask forPost(@NonNull String url,
-                                     @NonNull JSONObject params,
-                                     @Nullable IURLConnectionEvents callback) {
-        if (sLastPostRTT >= 0) {
+                                     @NonNull BranchPayload params,
+                                     @Nullable IURLConnectionEvents callback,
+                                     @NonNull BranchLatencyRecorder latency) {
+        long lastRTT = latency.takeLast();
+        if (lastRTT >= 0) {
             try {
-                params.putOpt("lr_rtt", sLastPostRTT);
+                params.json.putOpt("lr_rtt", lastRTT);
             } catch (JSONException ignore) {}
-            sLastPostRTT = -1;
         }
-        return new URLConnectionTask(url, params, callback, true);
+        return new URLConnectionTask(url, params, callback, true, latency);
 
     }
 
     private final String mUrl;
     private final IURLConnectionEvents mCallback;
     private Request.Builder mBuilder;
-    private final JSONObject payload;
-    private JSONObject encryptedPayload;
+    private final BranchPayload payload;
+    private boolean mEncrypted;
     private final Object mCallbackCalledLock = new Object();
+    private final Object mCallLock = new Object();
     private final boolean mIsPost;
+    private final BranchLatencyRecorder mLatency;
     private boolean mCallbackCalled;
+    private volatile boolean mCanceled;
+    private long mStartTime;
+    @Nullable private BranchHedgingPolicy mHedging;
+    @Nullable private BranchTimeoutPolicy mTimeouts;
+    private long mTimeoutMillis;
+    private int mRetries;
+    private Executor mExecutor;
+    // Guarded by mCallLock.
+    private Call mHedgeCall;
+    private Call mWinnerCall;
+    private int mPendingCalls;
+    private boolean mHeadersTimedOut;
     private String uploadIV;
+    @Nullable private final BranchRequestTimeline mTimeline;
+    private String mTraceName;
+    private int mTraceCookie;
     @VisibleForTesting Call mCall;
 
+    /**
+     * Runs partial results on the UI thread, as long as the final callback was not called.
+     * Since the final result is dispatched after all partial results, this also means that
+     * nothing is delivered after a cancellation.
+     */
+    private final Executor mProgressExecutor = new Executor() {
+        @Override
+        public void execute(@NonNull final Runnable command) {
+            Util.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mCallbackCalledLock) {
+                        if (!mCallbackCalled && !mCanceled) {
+                            command.run();
+                        }
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * Sends the hedge, see {@link #setHedging(BranchHedgingPolicy)}. Posted on the UI thread
+     * for timing, but the call is created on the executor.
+     */
+    private final Runnable mHedgeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Posted from the UI thread, but creating the call should not happen there.
+            BranchSharedExecutor.getInstance().execute(BranchSharedExecutor.Lane.SEARCH,
+                    new Runnable() {
+                @Override
+                public void run() {
+                    hedge();
+                }
+            });
+        }
+    };
+
+    /**
+     * Cancels the calls if no response headers arrived before the deadline of the
+     * {@link BranchTimeoutPolicy}. The body is only bounded by the call timeout, since
+     * the round trip times that the deadline comes from do not include it.
+     * Posted on the UI thread for timing, but cancelling may close sockets, so it is
+     * done on the shared executor.
+     */
+    private final Runnable mHeaderDeadlineRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final Call call;
+            synchronized (mCallLock) {
+                call = mCall;
+            }
+            BranchSharedExecutor.getInstance().execute(BranchSharedExecutor.Lane.SEARCH,
+                    new Runnable() {
+                @Override
+                public void run() {
+                    cancelPastHeaderDeadline(call);
+                }
+            });
+        }
+    };
+
+    /**
+     * Runs this task again, see {@link #retry()}.
+     */
+    private final Runnable mRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mTimeline != null) mTimeline.start(BranchRequestTimeline.Phase.QUEUE);
+            mExecutor.execute(URLConnectionTask.this);
+        }
+    };
+
     private URLConnectionTask(@NonNull String url,
-                              @Nullable JSONObject params,
+                              @Nullable BranchPayload params,
                               @Nullable IURLConnectionEvents callback,
-                              boolean isPost) {
+                              boolean isPost,
+                              @NonNull BranchLatencyRecorder latency) {
         mUrl = url;
         payload = params;
         mCallback = callback;
         mIsPost = isPost;
+        mLatency = latency;
+        if (BranchMetrics.isEnabled()) {
+            boolean hasStart = params != null && params.startNanos != 0;
+            mTimeline = new BranchRequestTimeline(url, hasStart ? params.startNanos : System.nanoTime());
+            if (hasStart) mTimeline.add(BranchRequestTimeline.Phase.PAYLOAD, params.buildNanos);
+        } else {
+            mTimeline = null;
+        }
         this.uploadIV = String.format(new Locale("en", "US"), "%.0f", (Math.random() * Math.pow(10, 16)));
     }
 
-    @Override
-    protected void onPostExecute(JSONObject jsonObject) {
-        super.onPostExecute(jsonObject);
-        synchronized (mCallbackCalledLock) {
-            if (!mCallbackCalled) {
-                if (mCallback != null) {
-                    mCallback.onResult(jsonObject);
-                }
-                mCallbackCalled = true;
-            }
+    /**
+     * Enables hedging for this task. Must be called before it is executed.
+     * @param hedging the policy, or null
+     */
+    void setHedging(@Nullable BranchHedgingPolicy hedging) {
+        mHedging = hedging;
+    }
+
+    /**
+     * Sets the timeout policy for this task. Must be called before it is executed.
+     * @param timeouts the policy, or null to use the client timeout
+     */
+    void setTimeoutPolicy(@Nullable BranchTimeoutPolicy timeouts) {
+        mTimeouts = timeouts;
+    }
+
+    /**
+     * Schedules this task on the given executor.
+     * Retries are scheduled on the same executor.
+     * @param executor an executor
+     */
+    void executeOnExecutor(@NonNull Executor executor) {
+        mExecutor = executor;
+        if (mTimeline != null) mTimeline.start(BranchRequestTimeline.Phase.QUEUE);
+        if (BranchTrace.isEnabled()) {
+            mTraceName = "BranchRequest " + Uri.parse(mUrl).getPath();
+            mTraceCookie = BranchTrace.beginAsync(mTraceName);
         }
+        executor.execute(this);
     }
 
+    @WorkerThread
     @Override
-    protected void onCancelled() {
-        super.onCancelled();
-        synchronized (mCallbackCalledLock) {
-            if (!mCallbackCalled) {
-                // Ensure we call our callback with the appropriate code.
-                if (mCallback != null) {
-                    mCallback.onResult(new BranchSearchError(
-                            BranchSearchError.ERR_CODE.REQUEST_CANCELED));
-                }
-                mCallbackCalled = true;
-            }
+    public void run() {
+        boolean traced = BranchTrace.begin("URLConnectionTask.execute");
+        try {
+            execute();
+        } finally {
+            BranchTrace.end(traced);
         }
     }
 
-
-    @Override
-    protected JSONObject doInBackground(Void... voids) {
+    @WorkerThread
+    private void execute() {
+        if (mCanceled) return;
+        if (mTimeline != null) mTimeline.end(BranchRequestTimeline.Phase.QUEUE);
+        long buildStart = startMark();
         // If POST, we should have Content-Type: application/json in the request,
         // but this should be already done by OkHttp when creating the post body.
         if (payload == null) {
             mBuilder = new Request.Builder().get();
-        } else if (mUrl.equals(BranchSearchInterface.BRANCH_SEARCH_URL) ||
-                mUrl.equals(BranchSearchInterface.BRANCH_QUERYHINT_URL) ||
-                mUrl.equals(BranchSearchInterface.BRANCH_AUTOSUGGEST_URL)) {
+        } else {
+            // The payload is written straight into the request sink, see BranchRequestBody.
+            boolean encrypt = mUrl.equals(BranchSearchInterface.BRANCH_SEARCH_URL) ||
+                    mUrl.equals(BranchSearchInterface.BRANCH_QUERYHINT_URL) ||
+                    mUrl.equals(BranchSearchInterface.BRANCH_AUTOSUGGEST_URL);
+            RequestBody body;
             try {
-                String cipherText = Branchcryption.encrypt(payload.toString(), uploadIV).trim();
-                encryptedPayload = new JSONObject().put(Branchcryption.jsonKeyData, cipherText).put(Branchcryption.jsonKeyIV, uploadIV);
-                mBuilder = new Request.Builder().post(RequestBody.create(POST_JSON, encryptedPayload.toString()));
-                mBuilder.addHeader(Branchcryption.headerKey, Branchcryption.keyId);
+                body = encrypt
+                        ? BranchRequestBody.createEncrypted(payload, uploadIV)
+                        : BranchRequestBody.create(payload);
             } catch (Exception e) {
-                mBuilder = new Request.Builder().post(RequestBody.create(POST_JSON, payload.toString()));
+                encrypt = false;
+                body = RequestBody.create(POST_JSON, payload.toString());
+            }
+            mEncrypted = encrypt;
+            mBuilder = new Request.Builder().post(body);
+            if (encrypt) {
+                mBuilder.addHeader(Branchcryption.headerKey, Branchcryption.keyId);
             }
-        } else {
-            mBuilder = new Request.Builder().post(RequestBody.create(POST_JSON, payload.toString()));
         }
         mBuilder.addHeader("Accept", "application/json");
         // Do NOT add "Accept-Encoding"! Instead, rely on OkHttp adding that automatically,
@@ -163,108 +307,407 @@ class URLConnectionTask extends AsyncTask<Void, Void, JSONObject> {
         // OkHttp will not automatically unzip the response, which would be an issue.
         // mBuilder.addHeader("Accept-Encoding", "gzip");
         mBuilder.url(mUrl);
-        return executeRequest();
-    }
+        if (mTimeline != null) {
+            // Lets BranchMetrics fill the network phases.
+            mBuilder.tag(BranchRequestTimeline.class, mTimeline);
+        }
+        endMark(BranchRequestTimeline.Phase.BUILD, buildStart);
 
-    @NonNull
-    private JSONObject executeRequest() {
-        long startTime = System.currentTimeMillis();
-        mCall = sClient.newCall(mBuilder.build());
-        Response response = null;
-        try {
-            // Execute the call and save the RTT
-            response = mCall.execute();
-            long endTime = System.currentTimeMillis();
-            if (mIsPost) {
-                sLastPostRTT = endTime - startTime;
-            } else {
-                sLastGetRTT = endTime - startTime;
+        Call call;
+        synchronized (mCallLock) {
+            // Check again, we might have been canceled while building the request.
+            if (mCanceled) return;
+            mStartTime = System.currentTimeMillis();
+            call = mCall = BranchHttpClient.getForApi().newCall(mBuilder.build());
+            if (mTimeouts != null) {
+                mTimeoutMillis = mTimeouts.getTimeoutMillis();
+                call.timeout().timeout(mTimeouts.getCallTimeoutMillis(), TimeUnit.MILLISECONDS);
             }
+            // This might be a retry.
+            mWinnerCall = null;
+            mHedgeCall = null;
+            mPendingCalls = 1;
+            mHeadersTimedOut = false;
+        }
+        if (mTimeline != null) mTimeline.onCall();
+        call.enqueue(this);
+        if (mTimeouts != null) Util.runOnUiThread(mHeaderDeadlineRunnable, mTimeoutMillis);
+        if (mHedging != null) {
+            long delay = mHedging.onRequest();
+            if (delay >= 0) Util.runOnUiThread(mHedgeRunnable, delay);
+        }
+    }
 
-            // Check the response code
-            // If >= 500, retry or return a server error..
-            int code = response.code();
-            if (code >= 500) {
-                return new BranchSearchError(BranchSearchError.ERR_CODE.INTERNAL_SERVER_ERR);
+    private void hedge() {
+        Call hedgeCall;
+        synchronized (mCallLock) {
+            // Only hedge if the original call is still waiting.
+            if (mCanceled || mWinnerCall != null || mPendingCalls != 1 || mHedgeCall != null
+                    || mHeadersTimedOut) return;
+            //noinspection ConstantConditions
+            if (!mHedging.tryHedge()) return;
+            hedgeCall = mHedgeCall = BranchHttpClient.getForHedging().newCall(mCall.request());
+            if (mTimeouts != null) {
+                hedgeCall.timeout().timeout(mTimeouts.getCallTimeoutMillis(), TimeUnit.MILLISECONDS);
             }
+            mPendingCalls++;
+        }
+        BranchMetrics.count(IBranchMetricsListener.Counter.REQUEST_HEDGED);
+        if (mTimeline != null) mTimeline.onCall();
+        hedgeCall.enqueue(this);
+    }
 
-            // This should never happen...?
-            if (response.body() == null) {
-                return new BranchSearchError(BranchSearchError.ERR_CODE.UNKNOWN_ERR);
-            }
+    /**
+     * Cancels the calls started along with the given one, unless a response arrived
+     * in the meantime or the task was retried with a new call.
+     */
+    private void cancelPastHeaderDeadline(@NonNull Call call) {
+        Call hedgeCall;
+        synchronized (mCallLock) {
+            if (mCall != call || mWinnerCall != null || mPendingCalls == 0) return;
+            mHeadersTimedOut = true;
+            hedgeCall = mHedgeCall;
+        }
+        call.cancel();
+        if (hedgeCall != null) hedgeCall.cancel();
+    }
 
-            // At this point we should have a valid server response
-            String body = response.body().string();
-            JSONObject result;
-            try {
-                result = new JSONObject(body);
-            } catch (JSONException ignore) {
-                return new BranchSearchError(BranchSearchError.ERR_CODE.INTERNAL_SERVER_ERR);
+    /**
+     * Called when a call gets a response. Returns true if it is the first one, in which case
+     * the other call, if any, is canceled.
+     */
+    private boolean win(@NonNull Call call) {
+        Call loser;
+        synchronized (mCallLock) {
+            mPendingCalls--;
+            if (mWinnerCall != null) return false;
+            mWinnerCall = call;
+            loser = call == mCall ? mHedgeCall : mCall;
+        }
+        Util.removeFromUiThread(mHeaderDeadlineRunnable);
+        if (loser != null) loser.cancel();
+        return true;
+    }
+
+    @Override
+    public void onDropped(boolean expired) {
+        dispatchResult(new BranchSearchError(expired
+                ? BranchSearchError.ERR_CODE.REQUEST_TIMED_OUT_ERR
+                : BranchSearchError.ERR_CODE.REQUEST_CANCELED));
+    }
+
+    @Override
+    public void onFailure(@NonNull Call call, @NonNull IOException e) {
+        boolean headersTimedOut;
+        synchronized (mCallLock) {
+            mPendingCalls--;
+            // Either the other call won, or it might still succeed.
+            if (mWinnerCall != null || mPendingCalls > 0) return;
+            headersTimedOut = mHeadersTimedOut;
+        }
+        Util.removeFromUiThread(mHeaderDeadlineRunnable);
+        if (mTimeouts != null && !mCanceled
+                && (headersTimedOut || e instanceof InterruptedIOException)) {
+            // Timed out. Record the deadline so that the next one is longer.
+            mTimeouts.record(mTimeoutMillis);
+        }
+        if (retry()) return;
+        dispatchResult(headersTimedOut
+                ? new BranchSearchError(BranchSearchError.ERR_CODE.REQUEST_TIMED_OUT_ERR)
+                : getError(e));
+    }
+
+    /**
+     * Schedules a retry of a GET request, if possible.
+     * @return true if scheduled
+     */
+    private boolean retry() {
+        if (mIsPost || mCanceled || mRetries >= BranchTimeoutPolicy.MAX_GET_RETRIES) return false;
+        BranchMetrics.count(IBranchMetricsListener.Counter.REQUEST_RETRIED);
+        Util.runOnUiThread(mRetryRunnable, BranchTimeoutPolicy.getRetryDelayMillis(mRetries++));
+        return true;
+    }
+
+    @Override
+    public void onResponse(@NonNull Call call, @NonNull Response response) {
+        boolean traced = BranchTrace.begin("URLConnectionTask.onResponse");
+        try {
+            handleResponse(call, response);
+        } finally {
+            BranchTrace.end(traced);
+        }
+    }
+
+    private void handleResponse(@NonNull Call call, @NonNull Response response) {
+        if (!win(call) || (response.code() >= 500 && retry())) {
+            response.close();
+            return;
+        }
+        try {
+            if (response.code() == 200 && response.body() != null
+                    && mCallback instanceof IURLConnectionStreamEvents) {
+                saveRTT();
+                streamResponse(response, (IURLConnectionStreamEvents<?>) mCallback);
+            } else {
+                dispatchResult(parseResponse(response));
             }
-            boolean requestWasEncrypted = encryptedPayload != null;
+        } catch (IOException e) {
+            dispatchResult(getError(e));
+        } finally {
+            try {
+                response.close();
+            } catch (Exception ignore) {}
+        }
+    }
+
+    private void saveRTT() {
+        // Measured from the original call, even if a hedge won: this is the time
+        // that the user waited.
+        long rtt = System.currentTimeMillis() - mStartTime;
+        if (mTimeouts != null) mTimeouts.record(rtt);
+        mLatency.record(rtt);
+    }
+
+    /**
+     * Hands the body of a successful response to the callback parser, without building
+     * the JSON tree. Encrypted bodies are a small envelope that must be decrypted as a
+     * whole, so in that case we stream the decrypted bytes instead of the network body.
+     */
+    private <T> void streamResponse(@NonNull Response response,
+                                    @NonNull IURLConnectionStreamEvents<T> callback)
+            throws IOException {
+        //noinspection ConstantConditions
+        JsonReader reader = new JsonReader(response.body().charStream());
+        boolean requestWasEncrypted = mEncrypted;
+        try {
             if (requestWasEncrypted &&
-                    Branchcryption.keyId.equals(response.header(Branchcryption.headerKey)) &&
-                    result.has(Branchcryption.jsonKeyData) &&
-                    result.has(Branchcryption.jsonKeyIV)) {
+                    Branchcryption.keyId.equals(response.header(Branchcryption.headerKey))) {
+                String data = null;
+                String responseIV = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (name.equals(Branchcryption.jsonKeyData)) {
+                        data = Util.nextString(reader, null);
+                    } else if (name.equals(Branchcryption.jsonKeyIV)) {
+                        responseIV = Util.nextString(reader, null);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (data == null || responseIV == null) {
+                    dispatchResult(new BranchSearchError(BranchSearchError.ERR_CODE.INTERNAL_SERVER_ERR));
+                    return;
+                }
+                long decryptStart = startMark();
                 try {
-                    String responseIV = result.getString(Branchcryption.jsonKeyIV);
-                    result = new JSONObject(Branchcryption.decrypt(result.getString(Branchcryption.jsonKeyData), responseIV));
+                    // Read the decrypted bytes directly, without going through a String.
+                    byte[] decrypted = Branchcryption.decrypt(data, responseIV.getBytes("UTF-8"));
+                    endMark(BranchRequestTimeline.Phase.DECRYPTION, decryptStart);
+                    reader = new JsonReader(new InputStreamReader(
+                            new ByteArrayInputStream(decrypted), "UTF-8"));
                 } catch (Exception e) {
-                    return new BranchSearchError(BranchSearchError.ERR_CODE.INTERNAL_SERVER_ERR);
+                    dispatchResult(new BranchSearchError(BranchSearchError.ERR_CODE.INTERNAL_SERVER_ERR));
+                    return;
                 }
             }
+            T result;
+            long parseStart = startMark();
+            BranchMetrics.setCurrentTimeline(mTimeline);
+            try {
+                result = callback.onParse(reader, mProgressExecutor);
+            } finally {
+                BranchMetrics.setCurrentTimeline(null);
+            }
+            endMark(BranchRequestTimeline.Phase.PARSE, parseStart);
+            dispatchParsed(callback, result);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            // JsonReader throws IllegalStateException when the structure is not the expected one.
+            dispatchResult(new BranchSearchError(BranchSearchError.ERR_CODE.INTERNAL_SERVER_ERR));
+        }
+    }
 
-            if (code == 200) {
-                // If code == 200, the response body is also our response.
-                return result;
-            } else {
-                // Try to parse an error.
-                try {
-                    if (result.has("error") && result.getJSONObject("error").has("message")) {
-                        return new BranchSearchError(result.getJSONObject("error"));
-                    } else if (result.has("code") && result.has("message")) {
-                        return new BranchSearchError(result);
+    @NonNull
+    private JSONObject parseResponse(@NonNull Response response) throws IOException {
+        saveRTT();
+
+        // Check the response code
+        // If >= 500, retry or return a server error..
+        int code = response.code();
+        if (code >= 500) {
+            return new BranchSearchError(BranchSearchError.ERR_CODE.INTERNAL_SERVER_ERR);
+        }
+
+        // This should never happen...?
+        if (response.body() == null) {
+            return new BranchSearchError(BranchSearchError.ERR_CODE.UNKNOWN_ERR);
+        }
+
+        // At this point we should have a valid server response
+        String body = response.body().string();
+        JSONObject result;
+        long parseStart = startMark();
+        try {
+            result = new JSONObject(body);
+        } catch (JSONException ignore) {
+            return new BranchSearchError(BranchSearchError.ERR_CODE.INTERNAL_SERVER_ERR);
+        }
+        endMark(BranchRequestTimeline.Phase.PARSE, parseStart);
+        boolean requestWasEncrypted = mEncrypted;
+        if (requestWasEncrypted &&
+                Branchcryption.keyId.equals(response.header(Branchcryption.headerKey)) &&
+                result.has(Branchcryption.jsonKeyData) &&
+                result.has(Branchcryption.jsonKeyIV)) {
+            long decryptStart = startMark();
+            try {
+                String responseIV = result.getString(Branchcryption.jsonKeyIV);
+                result = new JSONObject(Branchcryption.decrypt(result.getString(Branchcryption.jsonKeyData), responseIV));
+                endMark(BranchRequestTimeline.Phase.DECRYPTION, decryptStart);
+            } catch (Exception e) {
+                return new BranchSearchError(BranchSearchError.ERR_CODE.INTERNAL_SERVER_ERR);
+            }
+        }
+
+        if (code == 200) {
+            // If code == 200, the response body is also our response.
+            return result;
+        } else {
+            // Try to parse an error.
+            try {
+                if (result.has("error") && result.getJSONObject("error").has("message")) {
+                    return new BranchSearchError(result.getJSONObject("error"));
+                } else if (result.has("code") && result.has("message")) {
+                    return new BranchSearchError(result);
+                } else {
+                    // Not 200, but does not fit our BranchSearchError scheme.
+                    // Return a custom error if >= 400, otherwise return itself.
+                    if (code >= 400) {
+                        return new BranchSearchError(BranchSearchError.ERR_CODE.convert(code));
                     } else {
-                        // Not 200, but does not fit our BranchSearchError scheme.
-                        // Return a custom error if >= 400, otherwise return itself.
-                        if (code >= 400) {
-                            return new BranchSearchError(BranchSearchError.ERR_CODE.convert(code));
-                        } else {
-                            return result;
-                        }
+                        return result;
                     }
-                } catch (JSONException e) {
-                    // Not 200, but something when wrong when inspecting the result. Return itself.
-                    return result;
                 }
+            } catch (JSONException e) {
+                // Not 200, but something when wrong when inspecting the result. Return itself.
+                return result;
             }
-        } catch (StreamResetException | SocketException | InterruptedIOException e) {
+        }
+    }
+
+    @NonNull
+    private static BranchSearchError getError(@NonNull IOException e) {
+        if (e instanceof StreamResetException
+                || e instanceof SocketException
+                || e instanceof InterruptedIOException) {
             // The meaning of exceptions in these catch blocks is not documented - at least,
             // it's not clear which exceptions are thrown by OkHttp. And even worse, their
             // meaning changes based on the retryOnConnectionFailure() value.
             // If retryOnConnectionFailure() is set to false, please replace InterruptedIOException
             // with SocketTimeoutException here.
             return new BranchSearchError(BranchSearchError.ERR_CODE.REQUEST_TIMED_OUT_ERR);
-        } catch (UnknownHostException e) {
+        } else if (e instanceof UnknownHostException) {
             return new BranchSearchError(BranchSearchError.ERR_CODE.BRANCH_NO_CONNECTIVITY_ERR);
-        } catch (IOException e) {
+        } else {
             return new BranchSearchError(BranchSearchError.ERR_CODE.UNKNOWN_ERR);
-        } finally {
-            if (response != null) {
-                try {
-                    response.close();
-                } catch (Exception ignore) {}
+        }
+    }
+
+    /**
+     * Delivers the result on the UI thread, unless the callback was already called.
+     * Just like AsyncTask did, if we were canceled in the meantime, the result is replaced
+     * with a {@link BranchSearchError.ERR_CODE#REQUEST_CANCELED} error.
+     */
+    private void dispatchResult(@NonNull final JSONObject result) {
+        Util.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mCallbackCalledLock) {
+                    if (!mCallbackCalled) {
+                        JSONObject delivered = mCanceled ? new BranchSearchError(
+                                BranchSearchError.ERR_CODE.REQUEST_CANCELED) : result;
+                        if (mCallback != null) {
+                            mCallback.onResult(delivered);
+                        }
+                        mCallbackCalled = true;
+                        onDelivered(delivered instanceof BranchSearchError
+                                ? ((BranchSearchError) delivered).getErrorCode() : null);
+                    }
+                }
             }
+        });
+    }
+
+    /**
+     * Same as {@link #dispatchResult(JSONObject)}, for results of
+     * {@link IURLConnectionStreamEvents#onParse(JsonReader, Executor)}.
+     */
+    private <T> void dispatchParsed(@NonNull final IURLConnectionStreamEvents<T> callback,
+                                    @NonNull final T result) {
+        Util.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mCallbackCalledLock) {
+                    if (!mCallbackCalled) {
+                        boolean canceled = mCanceled;
+                        if (canceled) {
+                            callback.onResult(new BranchSearchError(
+                                    BranchSearchError.ERR_CODE.REQUEST_CANCELED));
+                        } else {
+                            callback.onParsedResult(result);
+                        }
+                        mCallbackCalled = true;
+                        onDelivered(canceled ? BranchSearchError.ERR_CODE.REQUEST_CANCELED : null);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Reports metrics and ends the trace section once the result was delivered.
+     * @param errorCode the delivered error code, or null if successful
+     */
+    private void onDelivered(@Nullable BranchSearchError.ERR_CODE errorCode) {
+        if (mTraceCookie != 0) BranchTrace.endAsync(mTraceName, mTraceCookie);
+        if (errorCode == BranchSearchError.ERR_CODE.REQUEST_CANCELED) {
+            BranchMetrics.count(IBranchMetricsListener.Counter.REQUEST_CANCELED);
+        }
+        if (mTimeline != null) {
+            mTimeline.finish(errorCode);
+            BranchMetrics.report(mTimeline);
         }
     }
 
+    /**
+     * @return the current time for {@link #endMark(BranchRequestTimeline.Phase, long)},
+     * or 0 if metrics are disabled
+     */
+    private long startMark() {
+        return mTimeline == null ? 0 : System.nanoTime();
+    }
+
+    private void endMark(@NonNull BranchRequestTimeline.Phase phase, long start) {
+        if (mTimeline != null) mTimeline.add(phase, System.nanoTime() - start);
+    }
+
     @WorkerThread
     void cancel() {
-        // Cancel AsyncTask first, then the OkHttp call. If we do the opposite,
-        // the executeRequest method can receive a quick IOException and return UNKNOWN_ERR.
-        // By canceling the AsyncTask first, we should get the cancel callback first,
-        // and correctly dispatch the REQUEST_CANCELED error.
-        cancel(true);
-        if (mCall != null)  mCall.cancel();
+        // Mark as canceled first, then cancel the OkHttp call. If we do the opposite,
+        // onFailure can receive a quick IOException and we would dispatch UNKNOWN_ERR.
+        // By marking ourselves first, we correctly dispatch the REQUEST_CANCELED error.
+        mCanceled = true;
+        Call call;
+        Call hedgeCall;
+        synchronized (mCallLock) {
+            call = mCall;
+            hedgeCall = mHedgeCall;
+        }
+        Util.removeFromUiThread(mHedgeRunnable);
+        Util.removeFromUiThread(mRetryRunnable);
+        Util.removeFromUiThread(mHeaderDeadlineRunnable);
+        dispatchResult(new BranchSearchError(BranchSearchError.ERR_CODE.REQUEST_CANCELED));
+        if (call != null) call.cancel();
+        if (hedgeCall != null) hedgeCall.cancel();
     }
 }
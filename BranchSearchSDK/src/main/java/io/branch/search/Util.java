@@ -6,12 +6,19 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.Locale;
 
 /**
@@ -22,6 +29,7 @@ import java.util.Locale;
  */
 class Util {
     private static String isoCountryCode;
+    private static Handler uiHandler;
 
     /**
      * Return the ISO2 Country Code.
@@ -143,12 +151,57 @@ class Util {
     }
 
     static boolean isAppInstalled(@NonNull Context context, @NonNull String packageName) {
-        PackageManager manager = context.getPackageManager();
+        boolean traced = BranchTrace.begin("Util.isAppInstalled");
         try {
-            manager.getPackageInfo(packageName, 0);
-            return true;
-        } catch (PackageManager.NameNotFoundException e) {
-            return false;
+            // Use the index if ready, so that we don't do any binder call.
+            Boolean indexed = BranchPackageIndex.getInstance(context).isInstalled(packageName);
+            if (indexed != null) return indexed;
+            PackageManager manager = context.getPackageManager();
+            try {
+                manager.getPackageInfo(packageName, 0);
+                return true;
+            } catch (PackageManager.NameNotFoundException e) {
+                return false;
+            }
+        } finally {
+            BranchTrace.end(traced);
+        }
+    }
+
+    /**
+     * Posts the given action to the UI thread. Callbacks that do not go through
+     * the network are posted here, so they behave the same as network callbacks.
+     * @param action an action
+     */
+    static void runOnUiThread(@NonNull Runnable action) {
+        getUiHandler().post(action);
+    }
+
+    /**
+     * Posts the given action to the UI thread, after the given delay.
+     * @param action an action
+     * @param delayMillis the delay
+     */
+    static void runOnUiThread(@NonNull Runnable action, long delayMillis) {
+        getUiHandler().postDelayed(action, delayMillis);
+    }
+
+    /**
+     * Removes an action that was posted through {@link #runOnUiThread(Runnable, long)}
+     * and did not run yet.
+     * @param action an action
+     */
+    static void removeFromUiThread(@NonNull Runnable action) {
+        getUiHandler().removeCallbacks(action);
+    }
+
+    @NonNull
+    private static Handler getUiHandler() {
+        synchronized (Util.class) {
+            if (uiHandler == null) {
+                uiHandler = new Handler(Looper.getMainLooper());
+            }
+            return uiHandler;
         }
     }
 
@@ -171,7 +224,120 @@ class Util {
             return json.optString(key, "");
     }
 
+    /**
+     * Reads the next value as a string, like {@link #optString(JSONObject, String)} does.
+     * Numbers and booleans are converted, nulls and other types return the fallback.
+     * @param reader a reader
+     * @param fallback the fallback
+     * @return a string
+     * @throws IOException if reading fails
+     */
+    static String nextString(@NonNull JsonReader reader, String fallback) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            default:
+                reader.skipValue();
+                return fallback;
+        }
+    }
+
+    /**
+     * Reads the next value as a double, like {@link JSONObject#optDouble(String, double)} does.
+     * @param reader a reader
+     * @param fallback the fallback
+     * @return a double
+     * @throws IOException if reading fails
+     */
+    static double nextDouble(@NonNull JsonReader reader, double fallback) throws IOException {
+        switch (reader.peek()) {
+            case NUMBER:
+                return reader.nextDouble();
+            case STRING:
+                try {
+                    return Double.parseDouble(reader.nextString());
+                } catch (NumberFormatException e) {
+                    return fallback;
+                }
+            default:
+                reader.skipValue();
+                return fallback;
+        }
+    }
 
+    /**
+     * Reads the next value as a boolean, like {@link JSONObject#optBoolean(String)} does.
+     * @param reader a reader
+     * @return a boolean
+     * @throws IOException if reading fails
+     */
+    static boolean nextBoolean(@NonNull JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case STRING:
+                return "true".equalsIgnoreCase(reader.nextString());
+            default:
+                reader.skipValue();
+                return false;
+        }
+    }
 
-}
+    /**
+     * Reads the next value as a {@link JSONObject}. Other types return an empty object.
+     * @param reader a reader
+     * @return a JSON object
+     * @throws IOException if reading fails
+     */
+    @NonNull
+    static JSONObject nextJSONObject(@NonNull JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return new JSONObject();
+        }
+        return (JSONObject) nextJSONValue(reader);
+    }
 
+    private static Object nextJSONValue(@NonNull JsonReader reader) throws IOException {
+        try {
+            switch (reader.peek()) {
+                case BEGIN_OBJECT:
+                    JSONObject object = new JSONObject();
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        object.put(reader.nextName(), nextJSONValue(reader));
+                    }
+                    reader.endObject();
+                    return object;
+                case BEGIN_ARRAY:
+                    JSONArray array = new JSONArray();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        array.put(nextJSONValue(reader));
+                    }
+                    reader.endArray();
+                    return array;
+                case BOOLEAN:
+                    return reader.nextBoolean();
+                case NUMBER:
+                    String number = reader.nextString();
+                    try {
+                        return Long.parseLong(number);
+                    } catch (NumberFormatException e) {
+                        return Double.parseDouble(number);
+                    }
+                case NULL:
+                    reader.nextNull();
+                    return JSONObject.NULL;
+                default:
+                    return reader.nextString();
+            }
+        } catch (JSONException e) {
+            // Only thrown for NaN or infinite numbers, that JsonReader does not produce.
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package io.branch.search;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the ranking and eviction of {@link BranchAutoSuggestIndex}.
+ */
+public class BranchAutoSuggestIndexTest {
+
+    private static final int MAX_ENTRIES = 1000;
+
+    private BranchAutoSuggestIndex index;
+
+    @Before
+    public void setUp() {
+        index = new BranchAutoSuggestIndex();
+    }
+
+    @Test
+    public void emptyIndex() {
+        assertEquals(Collections.<String>emptyList(), index.query("pi", 5));
+        index.add("pizza", 1F);
+        assertEquals(Collections.<String>emptyList(), index.query("", 5));
+        assertEquals(Collections.<String>emptyList(), index.query("pa", 5));
+        assertEquals(Collections.<String>emptyList(), index.query("pizzas", 5));
+    }
+
+    @Test
+    public void ranksByWeight() {
+        index.add("pizza", 1F);
+        index.add("pizza hut", 3F);
+        index.add("pie", 2F);
+        assertEquals(Arrays.asList("pizza hut", "pie", "pizza"), index.query("pi", 5));
+        assertEquals(Arrays.asList("pizza hut", "pizza"), index.query("piz", 5));
+        assertEquals(Collections.singletonList("pizza hut"), index.query("pizza h", 5));
+    }
+
+    @Test
+    public void weightsAddUp() {
+        index.add("pizza", 2F);
+        index.add("pie", 1F);
+        index.add("pie", 1.5F);
+        assertEquals(Arrays.asList("pie", "pizza"), index.query("pi", 5));
+    }
+
+    @Test
+    public void addAllFavorsFirstQueries() {
+        index.addAll(Arrays.asList("pie", "pizza", "pita"), BranchAutoSuggestIndex.WEIGHT_SUGGESTION);
+        assertEquals(Arrays.asList("pie", "pizza", "pita"), index.query("pi", 5));
+        // A search outweighs the first suggestion.
+        index.add("pita", BranchAutoSuggestIndex.WEIGHT_SEARCH);
+        assertEquals(Arrays.asList("pita", "pie", "pizza"), index.query("pi", 5));
+    }
+
+    @Test
+    public void normalizesQueries() {
+        index.add("  Pizza   Hut ", 1F);
+        index.add("pizza hut", 1F);
+        // Same entry, displayed as first added, without the outer whitespace.
+        assertEquals(Collections.singletonList("Pizza   Hut"), index.query("PIZZA  h", 5));
+    }
+
+    @Test
+    public void limitsResults() {
+        for (int i = 0; i < 10; i++) {
+            index.add("pizza " + i, i);
+        }
+        assertEquals(Arrays.asList("pizza 9", "pizza 8"), index.query("pizza", 2));
+        // 0 means the default of 5.
+        assertEquals(5, index.query("pizza", 0).size());
+    }
+
+    @Test
+    public void evictsLightestEntry() {
+        index.add("lightest", 0.5F);
+        for (int i = 1; i < MAX_ENTRIES; i++) {
+            index.add("query " + i, 1F);
+        }
+        assertEquals(Collections.singletonList("lightest"), index.query("light", 5));
+
+        index.add("newest", 1F);
+        assertEquals(Collections.<String>emptyList(), index.query("l", 5));
+        assertEquals(Collections.singletonList("newest"), index.query("new", 5));
+        assertEquals(Collections.singletonList("query 1"), index.query("query 1", 1));
+    }
+
+    @Test
+    public void evictionKeepsSharedPrefixes() {
+        index.add("pizza", 0.5F);
+        index.add("pizza hut", 2F);
+        for (int i = 2; i < MAX_ENTRIES; i++) {
+            index.add("query " + i, 1F);
+        }
+        index.add("newest", 1F);
+        // The evicted entry is gone, but the longer one below it is still reachable.
+        List<String> results = index.query("pizza", 5);
+        assertEquals(Collections.singletonList("pizza hut"), results);
+    }
+
+    @Test
+    public void clearRemovesEverything() {
+        index.add("pizza", 1F);
+        index.clear();
+        assertTrue(index.query("p", 5).isEmpty());
+        index.add("pie", 1F);
+        assertEquals(Collections.singletonList("pie"), index.query("p", 5));
+    }
+}
@@ -0,0 +1,114 @@
+package io.branch.search;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the bucket and percentile math of {@link BranchLatencyRecorder}.
+ */
+public class BranchLatencyRecorderTest {
+
+    private static final long MAX_TRACKED_MILLIS = (1L << 17) - 1;
+
+    @Test
+    public void emptyRecorder() {
+        BranchLatencyRecorder recorder = new BranchLatencyRecorder();
+        BranchLatencyStats stats = recorder.getStats();
+        assertEquals(0, stats.getCount());
+        assertEquals(-1, stats.getP50Millis());
+        assertEquals(-1, stats.getP90Millis());
+        assertEquals(-1, stats.getP99Millis());
+        assertEquals(-1, recorder.getPercentile(50, 0));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        for (long value = 0; value < 16; value++) {
+            BranchLatencyRecorder recorder = new BranchLatencyRecorder();
+            recorder.record(value);
+            assertEquals(value, recorder.getStats().getP50Millis());
+        }
+    }
+
+    @Test
+    public void valuesAreRoundedUpWithinBucketPrecision() {
+        for (long value = 16; value <= MAX_TRACKED_MILLIS; value += 1 + value / 64) {
+            BranchLatencyRecorder recorder = new BranchLatencyRecorder();
+            recorder.record(value);
+            long p50 = recorder.getStats().getP50Millis();
+            assertTrue(value + " reported as " + p50, p50 >= value);
+            assertTrue(value + " reported as " + p50, p50 <= value * 1.125);
+        }
+    }
+
+    @Test
+    public void bucketBoundaries() {
+        // 32 is the first value of the 2^5 range, whose buckets are 4 ms wide.
+        assertSingleValue(32, 35);
+        assertSingleValue(35, 35);
+        assertSingleValue(36, 39);
+        assertSingleValue(63, 63);
+        assertSingleValue(64, 71);
+    }
+
+    @Test
+    public void largeValuesGoToLastBucket() {
+        BranchLatencyRecorder recorder = new BranchLatencyRecorder();
+        recorder.record(1000 * 60 * 10);
+        assertEquals(MAX_TRACKED_MILLIS, recorder.getStats().getP50Millis());
+    }
+
+    @Test
+    public void negativeValuesAreIgnored() {
+        BranchLatencyRecorder recorder = new BranchLatencyRecorder();
+        recorder.record(-1);
+        assertEquals(0, recorder.getStats().getCount());
+        assertEquals(-1, recorder.takeLast());
+    }
+
+    @Test
+    public void percentiles() {
+        BranchLatencyRecorder recorder = new BranchLatencyRecorder();
+        for (long value = 1; value <= 100; value++) {
+            recorder.record(value);
+        }
+        BranchLatencyStats stats = recorder.getStats();
+        assertEquals(100, stats.getCount());
+        // The 50th value is 50, in the [48, 51] bucket.
+        assertEquals(51, stats.getP50Millis());
+        // The 90th value is 90, in the [88, 95] bucket.
+        assertEquals(95, stats.getP90Millis());
+        // The 99th value is 99, in the [96, 103] bucket.
+        assertEquals(103, stats.getP99Millis());
+    }
+
+    @Test
+    public void percentileNeedsMinimumCount() {
+        BranchLatencyRecorder recorder = new BranchLatencyRecorder();
+        for (int i = 0; i < 9; i++) {
+            recorder.record(100);
+        }
+        assertEquals(-1, recorder.getPercentile(90, 10));
+        recorder.record(100);
+        assertEquals(103, recorder.getPercentile(90, 10));
+    }
+
+    @Test
+    public void takeLastClearsValue() {
+        BranchLatencyRecorder recorder = new BranchLatencyRecorder();
+        recorder.record(10);
+        recorder.record(20);
+        assertEquals(20, recorder.takeLast());
+        assertEquals(-1, recorder.takeLast());
+        // The histogram is not affected.
+        assertEquals(2, recorder.getStats().getCount());
+    }
+
+    private static void assertSingleValue(long value, long expected) {
+        BranchLatencyRecorder recorder = new BranchLatencyRecorder();
+        recorder.record(value);
+        assertEquals(expected, recorder.getStats().getP50Millis());
+    }
+}
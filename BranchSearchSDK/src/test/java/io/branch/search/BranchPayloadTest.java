@@ -0,0 +1,117 @@
+package io.branch.search;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that {@link BranchPayload} splices the cached static fragment into the per-request
+ * values, and that the fragment is rebuilt when the configuration or device info change.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BranchPayloadTest {
+
+    private BranchConfiguration configuration;
+    private BranchDeviceInfo info;
+
+    @Before
+    public void setUp() {
+        configuration = new BranchConfiguration().setBranchKey("key_live_test");
+        configuration.setCountryCode("US");
+        info = new BranchDeviceInfo();
+    }
+
+    @Test
+    public void splicesStaticAndDynamicValues() throws Exception {
+        BranchSearchRequest request = BranchSearchRequest.Create("pizza")
+                .setMaxAppResults(10)
+                .setExtra("session", "test");
+        BranchPayload payload = BranchPayload.create(request, configuration, info);
+        JSONObject actual = new JSONObject(payload.toString());
+
+        JSONObject expected = new JSONObject();
+        info.addStaticDeviceInfo(expected);
+        configuration.addStaticConfigurationInfo(expected);
+        assertContains(actual, expected);
+        assertContains(actual, payload.json);
+        assertEquals(expected.length() + payload.json.length(), actual.length());
+        assertEquals("pizza", actual.getString("user_query"));
+        assertEquals("key_live_test", actual.getString("branch_key"));
+    }
+
+    @Test
+    public void reusesFragmentWhileVersionsMatch() throws Exception {
+        BranchPayload first = BranchPayload.create(
+                BranchSearchRequest.Create("pizza"), configuration, info);
+        BranchPayload second = BranchPayload.create(
+                BranchSearchRequest.Create("pasta"), configuration, info);
+        JSONObject firstJson = new JSONObject(first.toString());
+        JSONObject secondJson = new JSONObject(second.toString());
+        assertEquals(firstJson.getString("branch_key"), secondJson.getString("branch_key"));
+        assertEquals(firstJson.getString("country"), secondJson.getString("country"));
+        assertEquals("pasta", secondJson.getString("user_query"));
+    }
+
+    @Test
+    public void rebuildsFragmentOnConfigurationChange() throws Exception {
+        BranchSearchRequest request = BranchSearchRequest.Create("pizza");
+        BranchPayload before = BranchPayload.create(request, configuration, info);
+        assertEquals("US", new JSONObject(before.toString()).getString("country"));
+
+        int version = configuration.getVersion();
+        configuration.setCountryCode("FR");
+        assertTrue(configuration.getVersion() != version);
+        BranchPayload after = BranchPayload.create(request, configuration, info);
+        assertEquals("FR", new JSONObject(after.toString()).getString("country"));
+    }
+
+    @Test
+    public void rebuildsFragmentOnDeviceInfoChange() throws Exception {
+        BranchSearchRequest request = BranchSearchRequest.Create("pizza");
+        BranchPayload before = BranchPayload.create(request, configuration, info);
+        assertFalse(new JSONObject(before.toString()).has("app_package"));
+
+        int version = info.getVersion();
+        info.sync(RuntimeEnvironment.application);
+        assertTrue(info.getVersion() != version);
+        BranchPayload after = BranchPayload.create(request, configuration, info);
+        assertEquals(RuntimeEnvironment.application.getPackageName(),
+                new JSONObject(after.toString()).getString("app_package"));
+    }
+
+    @Test
+    public void rebuildsFragmentForAnotherConfiguration() throws Exception {
+        BranchSearchRequest request = BranchSearchRequest.Create("pizza");
+        BranchPayload.create(request, configuration, info);
+
+        BranchConfiguration other = new BranchConfiguration().setBranchKey("key_live_other");
+        BranchPayload payload = BranchPayload.create(request, other, info);
+        assertEquals("key_live_other", new JSONObject(payload.toString()).getString("branch_key"));
+    }
+
+    private static void assertContains(JSONObject actual, JSONObject expected) throws Exception {
+        Iterator<String> keys = expected.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            assertTrue("missing " + key, actual.has(key));
+            Object value = expected.get(key);
+            if (value instanceof Number) {
+                // Integral doubles are written without their fraction.
+                assertEquals(key, ((Number) value).doubleValue(), actual.getDouble(key), 0);
+            } else {
+                assertEquals(key, value.toString(), actual.get(key).toString());
+            }
+        }
+    }
+}
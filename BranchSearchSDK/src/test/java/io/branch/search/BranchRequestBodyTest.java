@@ -0,0 +1,101 @@
+package io.branch.search;
+
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.security.GeneralSecurityException;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that {@link BranchRequestBody#contentLength()} matches the bytes actually written,
+ * for payloads of different sizes. The encrypted tests are skipped in builds without
+ * an encryption key.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BranchRequestBodyTest {
+
+    private static final String IV = "1234567890123456";
+
+    private BranchConfiguration configuration;
+    private BranchDeviceInfo info;
+
+    @Before
+    public void setUp() {
+        configuration = new BranchConfiguration().setBranchKey("key_live_test");
+        info = new BranchDeviceInfo();
+    }
+
+    @Test
+    public void plainContentLength() throws Exception {
+        for (int length = 0; length < 100; length++) {
+            BranchPayload payload = createPayload(length);
+            BranchRequestBody body = BranchRequestBody.create(payload);
+            Buffer sink = new Buffer();
+            body.writeTo(sink);
+            assertEquals("query length " + length, sink.size(), body.contentLength());
+            // The plain body is the payload itself.
+            assertEquals(payload.toString(), sink.readUtf8());
+        }
+    }
+
+    @Test
+    public void plainBodyCanBeWrittenTwice() throws Exception {
+        BranchRequestBody body = BranchRequestBody.create(createPayload(10));
+        Buffer first = new Buffer();
+        body.writeTo(first);
+        Buffer second = new Buffer();
+        body.writeTo(second);
+        assertEquals(first.readUtf8(), second.readUtf8());
+    }
+
+    @Test
+    public void encryptedContentLength() throws Exception {
+        assumeEncryptionAvailable();
+        // Cover every padding length of the cipher and of the Base64 encoding.
+        for (int length = 0; length < 100; length++) {
+            BranchRequestBody body = BranchRequestBody.createEncrypted(createPayload(length), IV);
+            Buffer sink = new Buffer();
+            body.writeTo(sink);
+            assertEquals("query length " + length, sink.size(), body.contentLength());
+            JSONObject envelope = new JSONObject(sink.readUtf8());
+            assertEquals(IV, envelope.getString(Branchcryption.jsonKeyIV));
+        }
+    }
+
+    @Test
+    public void utf8ContentLength() throws Exception {
+        BranchPayload payload = BranchPayload.create(
+                BranchSearchRequest.Create("pizzería à 東京 🍕"),
+                configuration, info);
+        BranchRequestBody body = BranchRequestBody.create(payload);
+        Buffer sink = new Buffer();
+        body.writeTo(sink);
+        assertEquals(sink.size(), body.contentLength());
+    }
+
+    private BranchPayload createPayload(int queryLength) {
+        StringBuilder query = new StringBuilder();
+        for (int i = 0; i < queryLength; i++) {
+            query.append((char) ('a' + i % 26));
+        }
+        return BranchPayload.create(BranchSearchRequest.Create(query.toString()),
+                configuration, info);
+    }
+
+    private static void assumeEncryptionAvailable() {
+        try {
+            Branchcryption.getEncryptionCipher(IV);
+        } catch (GeneralSecurityException e) {
+            Assume.assumeNoException("Encryption is not available in this build", e);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package io.branch.search;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the timeouts computed by {@link BranchTimeoutPolicy} and their clamping to the
+ * channel bounds. Network monitoring is not started, so all samples go to the same estimator.
+ */
+public class BranchTimeoutPolicyTest {
+
+    @Test
+    public void usesDefaultUntilEnoughSamples() {
+        BranchTimeoutPolicy policy = BranchTimeoutPolicy.forSearch();
+        assertEquals(6000, policy.getTimeoutMillis());
+        for (int i = 0; i < 4; i++) {
+            policy.record(100);
+        }
+        assertEquals(6000, policy.getTimeoutMillis());
+        policy.record(100);
+        assertTrue(policy.getTimeoutMillis() < 6000);
+    }
+
+    @Test
+    public void clampsToMinimum() {
+        BranchTimeoutPolicy policy = BranchTimeoutPolicy.forSearch();
+        recordMany(policy, 50);
+        assertEquals(3000, policy.getTimeoutMillis());
+
+        policy = BranchTimeoutPolicy.forAutoSuggest();
+        recordMany(policy, 50);
+        assertEquals(1000, policy.getTimeoutMillis());
+    }
+
+    @Test
+    public void clampsToMaximum() {
+        BranchTimeoutPolicy policy = BranchTimeoutPolicy.forSearch();
+        recordMany(policy, 20000);
+        assertEquals(10000, policy.getTimeoutMillis());
+
+        policy = BranchTimeoutPolicy.forAutoSuggest();
+        recordMany(policy, 20000);
+        assertEquals(3000, policy.getTimeoutMillis());
+    }
+
+    @Test
+    public void followsEstimateBetweenBounds() {
+        BranchTimeoutPolicy policy = BranchTimeoutPolicy.forSearch();
+        // Constant samples: the deviation decays to 0, so the timeout is twice the mean.
+        recordMany(policy, 2000);
+        assertEquals(4000, policy.getTimeoutMillis());
+    }
+
+    @Test
+    public void growsAfterTimeouts() {
+        BranchTimeoutPolicy policy = BranchTimeoutPolicy.forQueryHint();
+        recordMany(policy, 1100);
+        long before = policy.getTimeoutMillis();
+        policy.record(before);
+        policy.record(before);
+        assertTrue(policy.getTimeoutMillis() > before);
+    }
+
+    @Test
+    public void callTimeoutCoversHeaderDeadline() {
+        BranchTimeoutPolicy[] policies = new BranchTimeoutPolicy[] {
+                BranchTimeoutPolicy.forSearch(),
+                BranchTimeoutPolicy.forAutoSuggest(),
+                BranchTimeoutPolicy.forQueryHint(),
+                BranchTimeoutPolicy.forGet()
+        };
+        for (BranchTimeoutPolicy policy : policies) {
+            recordMany(policy, 60000);
+            assertTrue(policy.getCallTimeoutMillis() >= policy.getTimeoutMillis());
+            assertTrue(policy.getCallTimeoutMillis() >= BranchHttpClient.CALL_TIMEOUT_MILLIS);
+        }
+    }
+
+    @Test
+    public void retryDelayHasJitteredBackoff() {
+        for (int attempt = 0; attempt < BranchTimeoutPolicy.MAX_GET_RETRIES; attempt++) {
+            long max = 500L << attempt;
+            for (int i = 0; i < 100; i++) {
+                long delay = BranchTimeoutPolicy.getRetryDelayMillis(attempt);
+                assertTrue("delay " + delay, delay >= max / 2 && delay <= max);
+            }
+        }
+    }
+
+    private static void recordMany(BranchTimeoutPolicy policy, long rttMillis) {
+        for (int i = 0; i < 100; i++) {
+            policy.record(rttMillis);
+        }
+    }
+}